@@ -3,15 +3,20 @@ package com.example.azurestoragetest.config;
 import com.azure.storage.blob.BlobServiceClient;
 import com.azure.storage.blob.BlobServiceClientBuilder;
 import com.azure.storage.common.StorageSharedKeyCredential;
+import com.azure.storage.common.policy.RequestRetryOptions;
+import com.azure.storage.common.policy.RetryPolicyType;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 
 import javax.annotation.PostConstruct;
+import java.time.Duration;
 
 @Configuration
 public class AzureStorageConfig {
@@ -27,6 +32,9 @@ public class AzureStorageConfig {
     private String accountKey;
     private String containerName;
     private String blobEndpoint;
+    private String secondaryBlobEndpoint;
+    private String secondaryAccountName;
+    private String secondaryAccountKey;
     private boolean configured = false;
 
     @PostConstruct
@@ -51,6 +59,7 @@ public class AzureStorageConfig {
             containerName = System.getenv("AZURE_STORAGE_CONTAINER_NAME") != null
                     ? System.getenv("AZURE_STORAGE_CONTAINER_NAME")
                     : "test-container";
+            secondaryBlobEndpoint = System.getenv("AZURITE_SECONDARY_BLOB_ENDPOINT");
             configured = true;
             return;
         }
@@ -61,6 +70,7 @@ public class AzureStorageConfig {
             accountKey = System.getenv("AZURE_STORAGE_ACCOUNT_KEY");
             containerName = System.getenv("AZURE_STORAGE_CONTAINER_NAME");
             blobEndpoint = System.getenv("AZURE_STORAGE_BLOB_ENDPOINT");
+            readSecondaryFromEnvironment();
         } else {
             try {
                 ObjectMapper mapper = new ObjectMapper();
@@ -78,6 +88,9 @@ public class AzureStorageConfig {
                                 accountKey = getCredentialValue(credentials, "account-key", "accountKey", "storage_account_key");
                                 containerName = getCredentialValue(credentials, "container-name", "containerName", "container_name");
                                 blobEndpoint = getCredentialValue(credentials, "blob-endpoint", "blobEndpoint", "blob_endpoint");
+                                secondaryBlobEndpoint = getCredentialValue(credentials, "secondary-blob-endpoint", "secondaryBlobEndpoint", "secondary_blob_endpoint");
+                                secondaryAccountName = getCredentialValue(credentials, "secondary-account-name", "secondaryAccountName", "secondary_account_name");
+                                secondaryAccountKey = getCredentialValue(credentials, "secondary-account-key", "secondaryAccountKey", "secondary_account_key");
                                 logger.info("Azure Storage credentials loaded from VCAP_SERVICES (service: {})", serviceName);
                                 configured = true;
                                 return;
@@ -91,6 +104,7 @@ public class AzureStorageConfig {
                 accountKey = System.getenv("AZURE_STORAGE_ACCOUNT_KEY");
                 containerName = System.getenv("AZURE_STORAGE_CONTAINER_NAME");
                 blobEndpoint = System.getenv("AZURE_STORAGE_BLOB_ENDPOINT");
+                readSecondaryFromEnvironment();
 
             } catch (Exception e) {
                 logger.error("Error parsing VCAP_SERVICES: {}", e.getMessage());
@@ -111,6 +125,12 @@ public class AzureStorageConfig {
         }
     }
 
+    private void readSecondaryFromEnvironment() {
+        secondaryBlobEndpoint = System.getenv("AZURE_STORAGE_SECONDARY_BLOB_ENDPOINT");
+        secondaryAccountName = System.getenv("AZURE_STORAGE_SECONDARY_ACCOUNT_NAME");
+        secondaryAccountKey = System.getenv("AZURE_STORAGE_SECONDARY_ACCOUNT_KEY");
+    }
+
     private String getCredentialValue(JsonNode credentials, String... keys) {
         for (String key : keys) {
             JsonNode value = credentials.get(key);
@@ -133,8 +153,36 @@ public class AzureStorageConfig {
         return new StorageSharedKeyCredential(accountName, accountKey);
     }
 
+    /**
+     * Retry policy for the storage clients that serve API requests. The SDK default (4 tries,
+     * exponential back-off from 4s) keeps a request thread and its concurrency limiter slot busy
+     * for about 30s while storage throttles; fewer, faster tries let the limiter see the
+     * throttling and shed load instead. There is no per-try timeout, since uploads and downloads
+     * take as long as their payload needs.
+     */
+    @Bean
+    public RequestRetryOptions storageRetryOptions(@Value("${app.storage.retry.max-tries:2}") int maxTries,
+                                                   @Value("${app.storage.retry.retry-delay:100ms}") Duration retryDelay,
+                                                   @Value("${app.storage.retry.max-retry-delay:1s}") Duration maxRetryDelay) {
+        return new RequestRetryOptions(RetryPolicyType.EXPONENTIAL, maxTries, (Duration) null, retryDelay, maxRetryDelay, null);
+    }
+
     @Bean
-    public BlobServiceClient blobServiceClient() {
+    @Primary
+    public BlobServiceClient blobServiceClient(RequestRetryOptions storageRetryOptions) {
+        return buildClient(storageRetryOptions);
+    }
+
+    /**
+     * Client for background work (index reconciliation and sync jobs), which no request is
+     * waiting on and which keeps the SDK's default retries for transient errors.
+     */
+    @Bean
+    public BlobServiceClient backgroundBlobServiceClient() {
+        return buildClient(new RequestRetryOptions());
+    }
+
+    private BlobServiceClient buildClient(RequestRetryOptions retryOptions) {
         if (!configured) {
             return null;
         }
@@ -153,6 +201,29 @@ public class AzureStorageConfig {
         return new BlobServiceClientBuilder()
                 .endpoint(endpoint)
                 .credential(credential)
+                .retryOptions(retryOptions)
+                .buildClient();
+    }
+
+    /**
+     * Read-only replica used for hedged reads: the RA-GRS secondary endpoint of the same account
+     * (same credentials) or a separate replica account with its own name and key.
+     */
+    @Bean
+    public BlobServiceClient secondaryBlobServiceClient(RequestRetryOptions storageRetryOptions) {
+        if (!configured || secondaryBlobEndpoint == null || secondaryBlobEndpoint.isEmpty()) {
+            return null;
+        }
+
+        String name = secondaryAccountName != null ? secondaryAccountName : accountName;
+        String key = secondaryAccountKey != null ? secondaryAccountKey : accountKey;
+
+        logger.info("Connecting to secondary blob endpoint: {}", secondaryBlobEndpoint);
+
+        return new BlobServiceClientBuilder()
+                .endpoint(secondaryBlobEndpoint)
+                .credential(new StorageSharedKeyCredential(name, key))
+                .retryOptions(storageRetryOptions)
                 .buildClient();
     }
 
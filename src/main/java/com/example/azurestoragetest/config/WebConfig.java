@@ -0,0 +1,16 @@
+package com.example.azurestoragetest.config;
+
+import com.example.azurestoragetest.jfr.BlobRequestInterceptor;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        // Flight Recorder events for every blob API request
+        registry.addInterceptor(new BlobRequestInterceptor()).addPathPatterns("/api/**");
+    }
+}
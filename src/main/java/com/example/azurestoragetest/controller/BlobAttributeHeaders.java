@@ -0,0 +1,82 @@
+package com.example.azurestoragetest.controller;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the optional blob index tag and metadata headers accepted on uploads. Both use the
+ * same URL-encoded {@code key=value&key2=value2} form as Azure's own x-ms-tags header. Only
+ * percent escapes are decoded: a {@code +} is kept as a plus sign, which is valid in tag values,
+ * and a space must be sent as {@code %20}.
+ */
+final class BlobAttributeHeaders {
+
+    static final String TAGS = "X-Blob-Tags";
+    static final String METADATA = "X-Blob-Metadata";
+
+    private static final int MAX_TAGS = 10;
+
+    /** Metadata names must be valid C# identifiers, and are case-insensitive. */
+    private static final Pattern METADATA_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private BlobAttributeHeaders() {
+    }
+
+    static Map<String, String> tags(String header) {
+        Map<String, String> tags = parse(TAGS, header);
+        if (tags != null && tags.size() > MAX_TAGS) {
+            throw new IllegalArgumentException(TAGS + " allows at most " + MAX_TAGS + " tags");
+        }
+        return tags;
+    }
+
+    static Map<String, String> metadata(String header) {
+        Map<String, String> metadata = parse(METADATA, header);
+        if (metadata != null) {
+            Set<String> names = new HashSet<>();
+            for (String name : metadata.keySet()) {
+                if (!METADATA_NAME.matcher(name).matches()) {
+                    throw new IllegalArgumentException("Invalid " + METADATA + " name '" + name
+                            + "': names must start with a letter or underscore and contain only letters, digits and underscores");
+                }
+                if (!names.add(name.toLowerCase(Locale.ROOT))) {
+                    throw new IllegalArgumentException("Duplicate " + METADATA + " name '" + name + "' (names are case-insensitive)");
+                }
+            }
+        }
+        return metadata;
+    }
+
+    private static Map<String, String> parse(String name, String header) {
+        if (header == null || header.trim().isEmpty()) {
+            return null;
+        }
+        Map<String, String> values = new LinkedHashMap<>();
+        for (String pair : header.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid " + name + " header: expected key=value pairs separated by '&'");
+            }
+            String key = decode(pair.substring(0, separator).trim());
+            if (values.put(key, decode(pair.substring(separator + 1).trim())) != null) {
+                throw new IllegalArgumentException("Duplicate " + name + " key '" + key + "'");
+            }
+        }
+        return values;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value.replace("+", "%2B"), StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.example.azurestoragetest.controller;
 
 import com.example.azurestoragetest.service.BlobStorageService;
+import com.example.azurestoragetest.service.StorageOverloadedException;
+import com.example.azurestoragetest.service.TaggedBlobPage;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -8,6 +10,7 @@ import org.springframework.web.bind.annotation.*;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 @RestController
 @RequestMapping("/api/blobs")
@@ -19,101 +22,134 @@ public class BlobStorageController {
         this.blobStorageService = blobStorageService;
     }
 
+    /**
+     * Runs a handler, answering invalid input with 400 and any other failure with
+     * {@code failureStatus}. {@link StorageOverloadedException} is left to
+     * {@link StorageOverloadedAdvice}, which answers 503 with a Retry-After header.
+     */
+    private <T> ResponseEntity<Map<String, T>> handle(HttpStatus failureStatus,
+                                                      Callable<ResponseEntity<Map<String, T>>> handler) {
+        try {
+            return handler.call();
+        } catch (StorageOverloadedException e) {
+            throw e;
+        } catch (IllegalArgumentException e) {
+            return error(HttpStatus.BAD_REQUEST, e);
+        } catch (Exception e) {
+            return error(failureStatus, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> ResponseEntity<Map<String, T>> error(HttpStatus status, Exception e) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("status", "error");
+        response.put("message", e.getMessage());
+        // Error bodies only hold strings, so they fit both the String and Object response maps
+        return ResponseEntity.status(status).body((Map<String, T>) (Map<String, ?>) response);
+    }
+
     @GetMapping("/test")
     public ResponseEntity<Map<String, String>> testConnection() {
-        Map<String, String> response = new HashMap<>();
-        try {
+        return handle(HttpStatus.INTERNAL_SERVER_ERROR, () -> {
+            Map<String, String> response = new HashMap<>();
             String result = blobStorageService.testConnection();
             response.put("status", "success");
             response.put("message", result);
             return ResponseEntity.ok(response);
-        } catch (Exception e) {
-            response.put("status", "error");
-            response.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
-        }
+        });
     }
 
     @PostMapping("/{blobName}")
     public ResponseEntity<Map<String, String>> uploadBlob(
             @PathVariable String blobName,
-            @RequestBody String content) {
-        Map<String, String> response = new HashMap<>();
-        try {
-            String blobUrl = blobStorageService.uploadBlob(blobName, content);
+            @RequestBody String content,
+            @RequestHeader(value = BlobAttributeHeaders.TAGS, required = false) String tags,
+            @RequestHeader(value = BlobAttributeHeaders.METADATA, required = false) String metadata) {
+        return handle(HttpStatus.INTERNAL_SERVER_ERROR, () -> {
+            Map<String, String> response = new HashMap<>();
+            String blobUrl = blobStorageService.uploadBlob(blobName, content,
+                    BlobAttributeHeaders.tags(tags), BlobAttributeHeaders.metadata(metadata));
             response.put("status", "success");
             response.put("message", "Blob uploaded successfully");
             response.put("blobName", blobName);
             response.put("blobUrl", blobUrl);
             return ResponseEntity.status(HttpStatus.CREATED).body(response);
-        } catch (Exception e) {
-            response.put("status", "error");
-            response.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
-        }
+        });
     }
 
     @GetMapping("/{blobName}")
     public ResponseEntity<Map<String, String>> downloadBlob(@PathVariable String blobName) {
-        Map<String, String> response = new HashMap<>();
-        try {
+        return handle(HttpStatus.NOT_FOUND, () -> {
+            Map<String, String> response = new HashMap<>();
             String content = blobStorageService.downloadBlob(blobName);
             response.put("status", "success");
             response.put("blobName", blobName);
             response.put("content", content);
             return ResponseEntity.ok(response);
-        } catch (Exception e) {
-            response.put("status", "error");
-            response.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
-        }
+        });
     }
 
     @GetMapping
-    public ResponseEntity<Map<String, Object>> listBlobs() {
-        Map<String, Object> response = new HashMap<>();
-        try {
-            List<String> blobs = blobStorageService.listBlobs();
+    public ResponseEntity<Map<String, Object>> listBlobs(@RequestParam(required = false) String prefix) {
+        return handle(HttpStatus.INTERNAL_SERVER_ERROR, () -> {
+            Map<String, Object> response = new HashMap<>();
+            List<String> blobs = blobStorageService.listBlobs(prefix);
             response.put("status", "success");
             response.put("blobs", blobs);
             response.put("count", blobs.size());
             return ResponseEntity.ok(response);
-        } catch (Exception e) {
-            response.put("status", "error");
-            response.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
-        }
+        });
+    }
+
+    /**
+     * Finds blobs by index tags, e.g. {@code ?where="project"='alpha'}. Handles GET /api/blobs
+     * whenever a where clause is given; scope=account searches every container in the account.
+     */
+    @GetMapping(params = "where")
+    public ResponseEntity<Map<String, Object>> findBlobsByTags(
+            @RequestParam String where,
+            @RequestParam(required = false, defaultValue = "container") String scope,
+            @RequestParam(required = false) Integer maxResults,
+            @RequestParam(required = false) String marker) {
+        return handle(HttpStatus.INTERNAL_SERVER_ERROR, () -> {
+            Map<String, Object> response = new HashMap<>();
+            if (!"container".equalsIgnoreCase(scope) && !"account".equalsIgnoreCase(scope)) {
+                throw new IllegalArgumentException("scope must be 'container' or 'account'");
+            }
+            if (maxResults != null && (maxResults < 1 || maxResults > 5000)) {
+                throw new IllegalArgumentException("maxResults must be between 1 and 5000");
+            }
+            TaggedBlobPage page = blobStorageService.findBlobsByTags(where, "account".equalsIgnoreCase(scope), maxResults, marker);
+            response.put("status", "success");
+            response.put("blobs", page.getBlobs());
+            response.put("count", page.getBlobs().size());
+            response.put("continuationToken", page.getContinuationToken());
+            return ResponseEntity.ok(response);
+        });
     }
 
     @DeleteMapping("/{blobName}")
     public ResponseEntity<Map<String, String>> deleteBlob(@PathVariable String blobName) {
-        Map<String, String> response = new HashMap<>();
-        try {
+        return handle(HttpStatus.INTERNAL_SERVER_ERROR, () -> {
+            Map<String, String> response = new HashMap<>();
             blobStorageService.deleteBlob(blobName);
             response.put("status", "success");
             response.put("message", "Blob deleted successfully");
             response.put("blobName", blobName);
             return ResponseEntity.ok(response);
-        } catch (Exception e) {
-            response.put("status", "error");
-            response.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
-        }
+        });
     }
 
     @GetMapping("/{blobName}/exists")
     public ResponseEntity<Map<String, Object>> blobExists(@PathVariable String blobName) {
-        Map<String, Object> response = new HashMap<>();
-        try {
+        return handle(HttpStatus.INTERNAL_SERVER_ERROR, () -> {
+            Map<String, Object> response = new HashMap<>();
             boolean exists = blobStorageService.blobExists(blobName);
             response.put("status", "success");
             response.put("blobName", blobName);
             response.put("exists", exists);
             return ResponseEntity.ok(response);
-        } catch (Exception e) {
-            response.put("status", "error");
-            response.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
-        }
+        });
     }
 }
@@ -1,6 +1,9 @@
 package com.example.azurestoragetest.controller;
 
 import com.example.azurestoragetest.service.DynamicBlobStorageService;
+import com.example.azurestoragetest.service.SecondaryAccount;
+import com.example.azurestoragetest.service.StorageOverloadedException;
+import com.example.azurestoragetest.service.TaggedBlobPage;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -8,6 +11,7 @@ import org.springframework.web.bind.annotation.*;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * REST controller that accepts Azure Storage credentials via request headers.
@@ -20,6 +24,9 @@ import java.util.Map;
  *
  * Optional headers:
  * - X-Azure-Blob-Endpoint: Custom blob endpoint (for Azurite or sovereign clouds)
+ * - X-Azure-Secondary-Blob-Endpoint: Read replica used for hedged reads (RA-GRS secondary or replica account)
+ * - X-Azure-Secondary-Account-Name / X-Azure-Secondary-Account-Key: Replica credentials, default to the primary's
+ * - X-Blob-Tags / X-Blob-Metadata: Index tags and metadata for uploads, as key=value&key2=value2
  */
 @RestController
 @RequestMapping("/api/dynamic")
@@ -29,6 +36,9 @@ public class DynamicBlobStorageController {
     private static final String HEADER_ACCOUNT_KEY = "X-Azure-Account-Key";
     private static final String HEADER_CONTAINER_NAME = "X-Azure-Container-Name";
     private static final String HEADER_BLOB_ENDPOINT = "X-Azure-Blob-Endpoint";
+    private static final String HEADER_SECONDARY_BLOB_ENDPOINT = "X-Azure-Secondary-Blob-Endpoint";
+    private static final String HEADER_SECONDARY_ACCOUNT_NAME = "X-Azure-Secondary-Account-Name";
+    private static final String HEADER_SECONDARY_ACCOUNT_KEY = "X-Azure-Secondary-Account-Key";
 
     private final DynamicBlobStorageService dynamicBlobStorageService;
 
@@ -37,17 +47,55 @@ public class DynamicBlobStorageController {
     }
 
     private void validateHeaders(String accountName, String accountKey, String containerName) {
+        validateCredentials(accountName, accountKey);
+        if (containerName == null || containerName.isEmpty()) {
+            throw new IllegalArgumentException("Missing required header: " + HEADER_CONTAINER_NAME);
+        }
+    }
+
+    private void validateCredentials(String accountName, String accountKey) {
         if (accountName == null || accountName.isEmpty()) {
             throw new IllegalArgumentException("Missing required header: " + HEADER_ACCOUNT_NAME);
         }
         if (accountKey == null || accountKey.isEmpty()) {
             throw new IllegalArgumentException("Missing required header: " + HEADER_ACCOUNT_KEY);
         }
-        if (containerName == null || containerName.isEmpty()) {
-            throw new IllegalArgumentException("Missing required header: " + HEADER_CONTAINER_NAME);
+    }
+
+    private SecondaryAccount secondaryAccount(String secondaryBlobEndpoint, String secondaryAccountName,
+                                              String secondaryAccountKey, String accountName, String accountKey) {
+        return SecondaryAccount.of(secondaryBlobEndpoint,
+                secondaryAccountName != null ? secondaryAccountName : accountName,
+                secondaryAccountKey != null ? secondaryAccountKey : accountKey);
+    }
+
+    /**
+     * Runs a handler, answering invalid input with 400 and any other failure with
+     * {@code failureStatus}. {@link StorageOverloadedException} is left to
+     * {@link StorageOverloadedAdvice}, which answers 503 with a Retry-After header.
+     */
+    private <T> ResponseEntity<Map<String, T>> handle(HttpStatus failureStatus,
+                                                      Callable<ResponseEntity<Map<String, T>>> handler) {
+        try {
+            return handler.call();
+        } catch (StorageOverloadedException e) {
+            throw e;
+        } catch (IllegalArgumentException e) {
+            return error(HttpStatus.BAD_REQUEST, e);
+        } catch (Exception e) {
+            return error(failureStatus, e);
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private static <T> ResponseEntity<Map<String, T>> error(HttpStatus status, Exception e) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("status", "error");
+        response.put("message", e.getMessage());
+        // Error bodies only hold strings, so they fit both the String and Object response maps
+        return ResponseEntity.status(status).body((Map<String, T>) (Map<String, ?>) response);
+    }
+
     @GetMapping("/test")
     public ResponseEntity<Map<String, String>> testConnection(
             @RequestHeader(value = HEADER_ACCOUNT_NAME, required = false) String accountName,
@@ -55,8 +103,8 @@ public class DynamicBlobStorageController {
             @RequestHeader(value = HEADER_CONTAINER_NAME, required = false) String containerName,
             @RequestHeader(value = HEADER_BLOB_ENDPOINT, required = false) String blobEndpoint) {
 
-        Map<String, String> response = new HashMap<>();
-        try {
+        return handle(HttpStatus.INTERNAL_SERVER_ERROR, () -> {
+            Map<String, String> response = new HashMap<>();
             validateHeaders(accountName, accountKey, containerName);
             String result = dynamicBlobStorageService.testConnection(accountName, accountKey, blobEndpoint, containerName);
             response.put("status", "success");
@@ -64,15 +112,7 @@ public class DynamicBlobStorageController {
             response.put("accountName", accountName);
             response.put("containerName", containerName);
             return ResponseEntity.ok(response);
-        } catch (IllegalArgumentException e) {
-            response.put("status", "error");
-            response.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
-        } catch (Exception e) {
-            response.put("status", "error");
-            response.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
-        }
+        });
     }
 
     @PostMapping("/blobs/{blobName}")
@@ -82,26 +122,21 @@ public class DynamicBlobStorageController {
             @RequestHeader(value = HEADER_ACCOUNT_NAME, required = false) String accountName,
             @RequestHeader(value = HEADER_ACCOUNT_KEY, required = false) String accountKey,
             @RequestHeader(value = HEADER_CONTAINER_NAME, required = false) String containerName,
-            @RequestHeader(value = HEADER_BLOB_ENDPOINT, required = false) String blobEndpoint) {
+            @RequestHeader(value = HEADER_BLOB_ENDPOINT, required = false) String blobEndpoint,
+            @RequestHeader(value = BlobAttributeHeaders.TAGS, required = false) String tags,
+            @RequestHeader(value = BlobAttributeHeaders.METADATA, required = false) String metadata) {
 
-        Map<String, String> response = new HashMap<>();
-        try {
+        return handle(HttpStatus.INTERNAL_SERVER_ERROR, () -> {
+            Map<String, String> response = new HashMap<>();
             validateHeaders(accountName, accountKey, containerName);
-            String blobUrl = dynamicBlobStorageService.uploadBlob(accountName, accountKey, blobEndpoint, containerName, blobName, content);
+            String blobUrl = dynamicBlobStorageService.uploadBlob(accountName, accountKey, blobEndpoint, containerName, blobName, content,
+                    BlobAttributeHeaders.tags(tags), BlobAttributeHeaders.metadata(metadata));
             response.put("status", "success");
             response.put("message", "Blob uploaded successfully");
             response.put("blobName", blobName);
             response.put("blobUrl", blobUrl);
             return ResponseEntity.status(HttpStatus.CREATED).body(response);
-        } catch (IllegalArgumentException e) {
-            response.put("status", "error");
-            response.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
-        } catch (Exception e) {
-            response.put("status", "error");
-            response.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
-        }
+        });
     }
 
     @GetMapping("/blobs/{blobName}")
@@ -110,51 +145,83 @@ public class DynamicBlobStorageController {
             @RequestHeader(value = HEADER_ACCOUNT_NAME, required = false) String accountName,
             @RequestHeader(value = HEADER_ACCOUNT_KEY, required = false) String accountKey,
             @RequestHeader(value = HEADER_CONTAINER_NAME, required = false) String containerName,
-            @RequestHeader(value = HEADER_BLOB_ENDPOINT, required = false) String blobEndpoint) {
+            @RequestHeader(value = HEADER_BLOB_ENDPOINT, required = false) String blobEndpoint,
+            @RequestHeader(value = HEADER_SECONDARY_BLOB_ENDPOINT, required = false) String secondaryBlobEndpoint,
+            @RequestHeader(value = HEADER_SECONDARY_ACCOUNT_NAME, required = false) String secondaryAccountName,
+            @RequestHeader(value = HEADER_SECONDARY_ACCOUNT_KEY, required = false) String secondaryAccountKey) {
 
-        Map<String, String> response = new HashMap<>();
-        try {
+        return handle(HttpStatus.NOT_FOUND, () -> {
+            Map<String, String> response = new HashMap<>();
             validateHeaders(accountName, accountKey, containerName);
-            String content = dynamicBlobStorageService.downloadBlob(accountName, accountKey, blobEndpoint, containerName, blobName);
+            String content = dynamicBlobStorageService.downloadBlob(accountName, accountKey, blobEndpoint, containerName, blobName,
+                    secondaryAccount(secondaryBlobEndpoint, secondaryAccountName, secondaryAccountKey, accountName, accountKey));
             response.put("status", "success");
             response.put("blobName", blobName);
             response.put("content", content);
             return ResponseEntity.ok(response);
-        } catch (IllegalArgumentException e) {
-            response.put("status", "error");
-            response.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
-        } catch (Exception e) {
-            response.put("status", "error");
-            response.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
-        }
+        });
     }
 
     @GetMapping("/blobs")
     public ResponseEntity<Map<String, Object>> listBlobs(
+            @RequestParam(required = false) String prefix,
             @RequestHeader(value = HEADER_ACCOUNT_NAME, required = false) String accountName,
             @RequestHeader(value = HEADER_ACCOUNT_KEY, required = false) String accountKey,
             @RequestHeader(value = HEADER_CONTAINER_NAME, required = false) String containerName,
-            @RequestHeader(value = HEADER_BLOB_ENDPOINT, required = false) String blobEndpoint) {
+            @RequestHeader(value = HEADER_BLOB_ENDPOINT, required = false) String blobEndpoint,
+            @RequestHeader(value = HEADER_SECONDARY_BLOB_ENDPOINT, required = false) String secondaryBlobEndpoint,
+            @RequestHeader(value = HEADER_SECONDARY_ACCOUNT_NAME, required = false) String secondaryAccountName,
+            @RequestHeader(value = HEADER_SECONDARY_ACCOUNT_KEY, required = false) String secondaryAccountKey) {
 
-        Map<String, Object> response = new HashMap<>();
-        try {
+        return handle(HttpStatus.INTERNAL_SERVER_ERROR, () -> {
+            Map<String, Object> response = new HashMap<>();
             validateHeaders(accountName, accountKey, containerName);
-            List<String> blobs = dynamicBlobStorageService.listBlobs(accountName, accountKey, blobEndpoint, containerName);
+            List<String> blobs = dynamicBlobStorageService.listBlobs(accountName, accountKey, blobEndpoint, containerName, prefix,
+                    secondaryAccount(secondaryBlobEndpoint, secondaryAccountName, secondaryAccountKey, accountName, accountKey));
             response.put("status", "success");
             response.put("blobs", blobs);
             response.put("count", blobs.size());
             return ResponseEntity.ok(response);
-        } catch (IllegalArgumentException e) {
-            response.put("status", "error");
-            response.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
-        } catch (Exception e) {
-            response.put("status", "error");
-            response.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
-        }
+        });
+    }
+
+    /**
+     * Finds blobs by index tags in the container from the headers, or in the whole account with
+     * scope=account. Handles GET /api/dynamic/blobs whenever a where clause is given.
+     */
+    @GetMapping(value = "/blobs", params = "where")
+    public ResponseEntity<Map<String, Object>> findBlobsByTags(
+            @RequestParam String where,
+            @RequestParam(required = false, defaultValue = "container") String scope,
+            @RequestParam(required = false) Integer maxResults,
+            @RequestParam(required = false) String marker,
+            @RequestHeader(value = HEADER_ACCOUNT_NAME, required = false) String accountName,
+            @RequestHeader(value = HEADER_ACCOUNT_KEY, required = false) String accountKey,
+            @RequestHeader(value = HEADER_CONTAINER_NAME, required = false) String containerName,
+            @RequestHeader(value = HEADER_BLOB_ENDPOINT, required = false) String blobEndpoint) {
+
+        return handle(HttpStatus.INTERNAL_SERVER_ERROR, () -> {
+            Map<String, Object> response = new HashMap<>();
+            if (!"container".equalsIgnoreCase(scope) && !"account".equalsIgnoreCase(scope)) {
+                throw new IllegalArgumentException("scope must be 'container' or 'account'");
+            }
+            boolean accountWide = "account".equalsIgnoreCase(scope);
+            if (accountWide) {
+                validateCredentials(accountName, accountKey);
+            } else {
+                validateHeaders(accountName, accountKey, containerName);
+            }
+            if (maxResults != null && (maxResults < 1 || maxResults > 5000)) {
+                throw new IllegalArgumentException("maxResults must be between 1 and 5000");
+            }
+            TaggedBlobPage page = dynamicBlobStorageService.findBlobsByTags(accountName, accountKey, blobEndpoint, containerName,
+                    where, accountWide, maxResults, marker);
+            response.put("status", "success");
+            response.put("blobs", page.getBlobs());
+            response.put("count", page.getBlobs().size());
+            response.put("continuationToken", page.getContinuationToken());
+            return ResponseEntity.ok(response);
+        });
     }
 
     @DeleteMapping("/blobs/{blobName}")
@@ -165,23 +232,15 @@ public class DynamicBlobStorageController {
             @RequestHeader(value = HEADER_CONTAINER_NAME, required = false) String containerName,
             @RequestHeader(value = HEADER_BLOB_ENDPOINT, required = false) String blobEndpoint) {
 
-        Map<String, String> response = new HashMap<>();
-        try {
+        return handle(HttpStatus.INTERNAL_SERVER_ERROR, () -> {
+            Map<String, String> response = new HashMap<>();
             validateHeaders(accountName, accountKey, containerName);
             dynamicBlobStorageService.deleteBlob(accountName, accountKey, blobEndpoint, containerName, blobName);
             response.put("status", "success");
             response.put("message", "Blob deleted successfully");
             response.put("blobName", blobName);
             return ResponseEntity.ok(response);
-        } catch (IllegalArgumentException e) {
-            response.put("status", "error");
-            response.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
-        } catch (Exception e) {
-            response.put("status", "error");
-            response.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
-        }
+        });
     }
 
     @GetMapping("/blobs/{blobName}/exists")
@@ -190,24 +249,20 @@ public class DynamicBlobStorageController {
             @RequestHeader(value = HEADER_ACCOUNT_NAME, required = false) String accountName,
             @RequestHeader(value = HEADER_ACCOUNT_KEY, required = false) String accountKey,
             @RequestHeader(value = HEADER_CONTAINER_NAME, required = false) String containerName,
-            @RequestHeader(value = HEADER_BLOB_ENDPOINT, required = false) String blobEndpoint) {
+            @RequestHeader(value = HEADER_BLOB_ENDPOINT, required = false) String blobEndpoint,
+            @RequestHeader(value = HEADER_SECONDARY_BLOB_ENDPOINT, required = false) String secondaryBlobEndpoint,
+            @RequestHeader(value = HEADER_SECONDARY_ACCOUNT_NAME, required = false) String secondaryAccountName,
+            @RequestHeader(value = HEADER_SECONDARY_ACCOUNT_KEY, required = false) String secondaryAccountKey) {
 
-        Map<String, Object> response = new HashMap<>();
-        try {
+        return handle(HttpStatus.INTERNAL_SERVER_ERROR, () -> {
+            Map<String, Object> response = new HashMap<>();
             validateHeaders(accountName, accountKey, containerName);
-            boolean exists = dynamicBlobStorageService.blobExists(accountName, accountKey, blobEndpoint, containerName, blobName);
+            boolean exists = dynamicBlobStorageService.blobExists(accountName, accountKey, blobEndpoint, containerName, blobName,
+                    secondaryAccount(secondaryBlobEndpoint, secondaryAccountName, secondaryAccountKey, accountName, accountKey));
             response.put("status", "success");
             response.put("blobName", blobName);
             response.put("exists", exists);
             return ResponseEntity.ok(response);
-        } catch (IllegalArgumentException e) {
-            response.put("status", "error");
-            response.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
-        } catch (Exception e) {
-            response.put("status", "error");
-            response.put("message", e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
-        }
+        });
     }
 }
@@ -0,0 +1,30 @@
+package com.example.azurestoragetest.controller;
+
+import com.example.azurestoragetest.service.StorageOverloadedException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns requests shed by the storage concurrency limiter into 503 responses with a Retry-After
+ * header. The blob controllers let {@link StorageOverloadedException} through their generic error
+ * handling.
+ */
+@RestControllerAdvice(basePackages = "com.example.azurestoragetest.controller")
+public class StorageOverloadedAdvice {
+
+    @ExceptionHandler(StorageOverloadedException.class)
+    public ResponseEntity<Map<String, String>> handleOverloaded(StorageOverloadedException e) {
+        Map<String, String> response = new HashMap<>();
+        response.put("status", "error");
+        response.put("message", e.getMessage());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .body(response);
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.azurestoragetest.controller;
+
+import com.example.azurestoragetest.service.ContainerSyncService;
+import com.example.azurestoragetest.service.SyncJob;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Background sync jobs between the configured container and a directory under the sync root.
+ *
+ * POST /api/sync/jobs takes a JSON body with "direction" (download or upload),
+ * "localDirectory" (relative to app.storage.sync.root) and an optional "prefix".
+ */
+@RestController
+@RequestMapping("/api/sync/jobs")
+public class SyncJobController {
+
+    private final ContainerSyncService containerSyncService;
+
+    public SyncJobController(ContainerSyncService containerSyncService) {
+        this.containerSyncService = containerSyncService;
+    }
+
+    @PostMapping
+    public ResponseEntity<Map<String, Object>> startJob(@RequestBody Map<String, String> request) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            SyncJob job = containerSyncService.submit(request.get("direction"), request.get("localDirectory"),
+                    request.get("prefix"));
+            response.put("status", "success");
+            response.put("job", job.toMap());
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(response);
+        } catch (IllegalArgumentException e) {
+            response.put("status", "error");
+            response.put("message", e.getMessage());
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
+        } catch (IllegalStateException e) {
+            response.put("status", "error");
+            response.put("message", e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(response);
+        } catch (Exception e) {
+            response.put("status", "error");
+            response.put("message", e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
+        }
+    }
+
+    @GetMapping
+    public ResponseEntity<Map<String, Object>> listJobs() {
+        Map<String, Object> response = new HashMap<>();
+        List<Map<String, Object>> jobs = new ArrayList<>();
+        for (SyncJob job : containerSyncService.getJobs()) {
+            jobs.add(job.toMap());
+        }
+        response.put("status", "success");
+        response.put("jobs", jobs);
+        response.put("count", jobs.size());
+        return ResponseEntity.ok(response);
+    }
+
+    @GetMapping("/{jobId}")
+    public ResponseEntity<Map<String, Object>> getJob(@PathVariable String jobId) {
+        return jobResponse(containerSyncService.getJob(jobId), HttpStatus.OK);
+    }
+
+    @PostMapping("/{jobId}/resume")
+    public ResponseEntity<Map<String, Object>> resumeJob(@PathVariable String jobId) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            return jobResponse(containerSyncService.resume(jobId), HttpStatus.ACCEPTED);
+        } catch (IllegalStateException e) {
+            response.put("status", "error");
+            response.put("message", e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(response);
+        } catch (Exception e) {
+            response.put("status", "error");
+            response.put("message", e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(response);
+        }
+    }
+
+    @DeleteMapping("/{jobId}")
+    public ResponseEntity<Map<String, Object>> cancelJob(@PathVariable String jobId) {
+        return jobResponse(containerSyncService.cancel(jobId), HttpStatus.OK);
+    }
+
+    private static ResponseEntity<Map<String, Object>> jobResponse(SyncJob job, HttpStatus status) {
+        Map<String, Object> response = new HashMap<>();
+        if (job == null) {
+            response.put("status", "error");
+            response.put("message", "Sync job not found");
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
+        }
+        response.put("status", "success");
+        response.put("job", job.toMap());
+        return ResponseEntity.status(status).body(response);
+    }
+}
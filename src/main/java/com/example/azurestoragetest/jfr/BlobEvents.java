@@ -0,0 +1,181 @@
+package com.example.azurestoragetest.jfr;
+
+import com.azure.core.exception.HttpResponseException;
+import com.example.azurestoragetest.service.StorageOverloadedException;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Emits {@link BlobOperationEvent}s and {@link BlobPhaseEvent}s around service code.
+ *
+ * When no recording has the events enabled the body runs directly and nothing is allocated
+ * beyond the event object, so these wrappers can stay in place permanently.
+ *
+ * Events carry the correlation id of the API request or sync job they belong to. The id lives
+ * in a thread local, so work handed to other threads (hedged reads, sync chunks) has to be
+ * wrapped with {@link #correlated} to keep it.
+ */
+public final class BlobEvents {
+
+    public static final String CLIENT_ACQUISITION = "client-acquisition";
+    public static final String CONTAINER_CHECK = "container-check";
+    public static final String STORAGE_CALL = "storage-call";
+    public static final String RESPONSE_SERIALIZATION = "response-serialization";
+
+    private static final String SUCCESS = "success";
+
+    private static final ThreadLocal<String> CORRELATION_ID = new ThreadLocal<>();
+    private static final AtomicLong NEXT_CORRELATION_ID = new AtomicLong();
+
+    private BlobEvents() {
+    }
+
+    /**
+     * @return a new correlation id, unique within this JVM
+     */
+    public static String newCorrelationId() {
+        return Long.toString(NEXT_CORRELATION_ID.incrementAndGet(), 36);
+    }
+
+    public static String getCorrelationId() {
+        return CORRELATION_ID.get();
+    }
+
+    /**
+     * Tags events recorded on the current thread with {@code correlationId}; null clears it.
+     */
+    public static void setCorrelationId(String correlationId) {
+        if (correlationId != null) {
+            CORRELATION_ID.set(correlationId);
+        } else {
+            CORRELATION_ID.remove();
+        }
+    }
+
+    /**
+     * Wraps {@code body} so it runs with the current thread's correlation id on whatever thread
+     * eventually calls it.
+     */
+    public static <T> Supplier<T> correlated(Supplier<T> body) {
+        String correlationId = CORRELATION_ID.get();
+        if (correlationId == null) {
+            return body;
+        }
+        return () -> {
+            String previous = CORRELATION_ID.get();
+            setCorrelationId(correlationId);
+            try {
+                return body.get();
+            } finally {
+                setCorrelationId(previous);
+            }
+        };
+    }
+
+    public static Runnable correlated(Runnable task) {
+        String correlationId = CORRELATION_ID.get();
+        if (correlationId == null) {
+            return task;
+        }
+        return () -> {
+            String previous = CORRELATION_ID.get();
+            setCorrelationId(correlationId);
+            try {
+                task.run();
+            } finally {
+                setCorrelationId(previous);
+            }
+        };
+    }
+
+    public static <T> T operation(String service, String operation, String account, String container,
+                                  String blob, Supplier<T> body) {
+        return record(service, operation, account, container, blob, body, null, null);
+    }
+
+    /**
+     * Like {@link #operation} but also records the number of bytes moved, computed from the
+     * result only if the event is going to be committed.
+     */
+    public static <T> T transfer(String service, String operation, String account, String container,
+                                 String blob, ToLongFunction<T> bytes, Supplier<T> body) {
+        return record(service, operation, account, container, blob, body, bytes, null);
+    }
+
+    public static List<String> listing(String service, String account, String container,
+                                       Supplier<List<String>> body) {
+        return record(service, "list", account, container, null, body, null, List::size);
+    }
+
+    public static <T> T phase(String operation, String phase, Supplier<T> body) {
+        BlobPhaseEvent event = new BlobPhaseEvent();
+        if (!event.isEnabled()) {
+            return body.get();
+        }
+        event.begin();
+        event.operation = operation;
+        event.phase = phase;
+        event.correlationId = CORRELATION_ID.get();
+        try {
+            T result = body.get();
+            event.outcome = SUCCESS;
+            return result;
+        } catch (RuntimeException e) {
+            event.outcome = outcome(e);
+            throw e;
+        } finally {
+            event.commit();
+        }
+    }
+
+    private static <T> T record(String service, String operation, String account, String container, String blob,
+                                Supplier<T> body, ToLongFunction<T> bytes, ToLongFunction<T> items) {
+        BlobOperationEvent event = new BlobOperationEvent();
+        if (!event.isEnabled()) {
+            return body.get();
+        }
+        event.begin();
+        try {
+            T result = body.get();
+            event.end();
+            if (event.shouldCommit()) {
+                event.outcome = SUCCESS;
+                event.bytes = bytes != null ? bytes.applyAsLong(result) : 0;
+                event.items = items != null ? items.applyAsLong(result) : 0;
+            }
+            return result;
+        } catch (RuntimeException e) {
+            event.end();
+            event.outcome = outcome(e);
+            throw e;
+        } finally {
+            if (event.shouldCommit()) {
+                event.service = service;
+                event.operation = operation;
+                event.account = account;
+                event.container = container;
+                event.blob = blob;
+                event.correlationId = CORRELATION_ID.get();
+                event.commit();
+            }
+        }
+    }
+
+    static String outcome(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof StorageOverloadedException) {
+                return "shed";
+            }
+            if (cause instanceof InterruptedException) {
+                return "cancelled";
+            }
+            if (cause instanceof HttpResponseException && ((HttpResponseException) cause).getResponse() != null) {
+                return "http-" + ((HttpResponseException) cause).getResponse().getStatusCode();
+            }
+        }
+        return e.getClass().getSimpleName();
+    }
+}
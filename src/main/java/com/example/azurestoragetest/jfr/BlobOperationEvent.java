@@ -0,0 +1,51 @@
+package com.example.azurestoragetest.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One blob operation as seen by a service method, from entry to return, including time spent
+ * waiting on coalesced calls, concurrency slots and hedges.
+ */
+@Name("com.example.azurestoragetest.BlobOperation")
+@Label("Blob Operation")
+@Category({"Azure Storage", "Blob"})
+@Description("A blob storage operation performed by the service layer")
+@StackTrace(false)
+public class BlobOperationEvent extends Event {
+
+    @Label("Service")
+    String service;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Account")
+    String account;
+
+    @Label("Container")
+    String container;
+
+    @Label("Blob")
+    String blob;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Items")
+    @Description("Number of blobs returned by a listing")
+    long items;
+
+    @Label("Outcome")
+    String outcome;
+
+    @Label("Correlation ID")
+    @Description("Shared by the events of one API request or sync job, whichever thread recorded them")
+    String correlationId;
+}
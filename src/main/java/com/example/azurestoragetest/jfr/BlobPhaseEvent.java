@@ -0,0 +1,33 @@
+package com.example.azurestoragetest.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One phase of a blob operation: client acquisition, container check, storage call or response
+ * serialization.
+ */
+@Name("com.example.azurestoragetest.BlobPhase")
+@Label("Blob Operation Phase")
+@Category({"Azure Storage", "Blob"})
+@Description("A single phase of a blob storage operation")
+@StackTrace(false)
+public class BlobPhaseEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Outcome")
+    String outcome;
+
+    @Label("Correlation ID")
+    @Description("Shared by the events of one API request or sync job, whichever thread recorded them")
+    String correlationId;
+}
@@ -0,0 +1,32 @@
+package com.example.azurestoragetest.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One HTTP request handled by a blob controller, from dispatch until the response is written.
+ */
+@Name("com.example.azurestoragetest.BlobRequest")
+@Label("Blob API Request")
+@Category({"Azure Storage", "HTTP"})
+@Description("An HTTP request handled by a blob storage controller")
+@StackTrace(false)
+public class BlobRequestEvent extends Event {
+
+    @Label("Method")
+    String method;
+
+    @Label("Handler")
+    String handler;
+
+    @Label("Status")
+    int status;
+
+    @Label("Correlation ID")
+    @Description("Shared by the events of one API request or sync job, whichever thread recorded them")
+    String correlationId;
+}
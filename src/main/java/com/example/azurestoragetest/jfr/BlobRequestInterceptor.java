@@ -0,0 +1,53 @@
+package com.example.azurestoragetest.jfr;
+
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Records a {@link BlobRequestEvent} per API request and closes the response serialization
+ * phase opened by {@link ResponseSerializationAdvice} once the response has been written. Each
+ * request gets a fresh correlation id that every event it causes is tagged with.
+ */
+public class BlobRequestInterceptor implements HandlerInterceptor {
+
+    static final String REQUEST_EVENT_ATTRIBUTE = BlobRequestInterceptor.class.getName() + ".request";
+    static final String SERIALIZATION_EVENT_ATTRIBUTE = BlobRequestInterceptor.class.getName() + ".serialization";
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        BlobEvents.setCorrelationId(BlobEvents.newCorrelationId());
+        BlobRequestEvent event = new BlobRequestEvent();
+        if (event.isEnabled()) {
+            event.begin();
+            request.setAttribute(REQUEST_EVENT_ATTRIBUTE, event);
+        }
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        BlobPhaseEvent serialization = (BlobPhaseEvent) request.getAttribute(SERIALIZATION_EVENT_ATTRIBUTE);
+        if (serialization != null) {
+            serialization.outcome = ex == null ? "success" : BlobEvents.outcome(ex);
+            serialization.commit();
+        }
+
+        BlobRequestEvent event = (BlobRequestEvent) request.getAttribute(REQUEST_EVENT_ATTRIBUTE);
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.method = request.getMethod();
+                event.handler = handler instanceof HandlerMethod
+                        ? ((HandlerMethod) handler).getBeanType().getSimpleName() + "." + ((HandlerMethod) handler).getMethod().getName()
+                        : String.valueOf(handler);
+                event.status = response.getStatus();
+                event.correlationId = BlobEvents.getCorrelationId();
+                event.commit();
+            }
+        }
+        BlobEvents.setCorrelationId(null);
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.azurestoragetest.jfr;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.actuate.endpoint.web.WebEndpointResponse;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Actuator endpoint to start, dump and stop a Flight Recorder recording.
+ *
+ * POST /actuator/jfr starts a recording (optional "settings": default or profile, and
+ * "maxAgeSeconds"). GET /actuator/jfr downloads a .jfr file of the running recording, or a
+ * snapshot of every recording in the JVM (e.g. one started with -XX:StartFlightRecording) if
+ * none was started here. DELETE /actuator/jfr stops it.
+ *
+ * Dumps are written to a temporary file that is deleted once streamed. A dump whose body is never
+ * read is deleted when the next one is taken, or on shutdown, so at most one is left behind.
+ */
+@Component
+@Endpoint(id = "jfr")
+public class FlightRecorderEndpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(FlightRecorderEndpoint.class);
+
+    private static final String RECORDING_NAME = "blob-storage";
+
+    private Recording recording;
+    private Path lastDump;
+
+    @WriteOperation
+    public synchronized Map<String, Object> start(@Nullable String settings, @Nullable Long maxAgeSeconds)
+            throws IOException, ParseException {
+        String configuration = settings != null ? settings : "default";
+        if (!"default".equals(configuration) && !"profile".equals(configuration)) {
+            throw new InvalidEndpointRequestException("settings must be 'default' or 'profile'",
+                    "Unknown settings '" + configuration + "'");
+        }
+        if (recording != null) {
+            recording.close();
+        }
+
+        recording = new Recording(Configuration.getConfiguration(configuration));
+        recording.setName(RECORDING_NAME);
+        recording.setToDisk(true);
+        recording.setMaxAge(Duration.ofSeconds(maxAgeSeconds != null ? maxAgeSeconds : 600));
+        recording.enable(BlobOperationEvent.class);
+        recording.enable(BlobPhaseEvent.class);
+        recording.enable(BlobRequestEvent.class);
+        recording.start();
+        logger.info("Started Flight Recorder recording '{}' with '{}' settings", RECORDING_NAME, configuration);
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("status", "started");
+        response.put("recording", RECORDING_NAME);
+        response.put("settings", configuration);
+        return response;
+    }
+
+    @ReadOperation(produces = "application/octet-stream")
+    public synchronized WebEndpointResponse<Resource> dump() throws IOException {
+        deleteLastDump();
+        Path file = Files.createTempFile("blob-storage-", ".jfr");
+        boolean dumped = false;
+        try {
+            if (recording != null) {
+                recording.dump(file);
+            } else {
+                try (Recording snapshot = FlightRecorder.getFlightRecorder().takeSnapshot()) {
+                    if (snapshot.getSize() == 0) {
+                        return new WebEndpointResponse<>(WebEndpointResponse.STATUS_NOT_FOUND);
+                    }
+                    snapshot.dump(file);
+                }
+            }
+            dumped = true;
+        } finally {
+            if (!dumped) {
+                Files.deleteIfExists(file);
+            }
+        }
+        lastDump = file;
+        return new WebEndpointResponse<>(new TemporaryFileResource(file.toFile()));
+    }
+
+    @DeleteOperation
+    public synchronized Map<String, Object> stop() {
+        Map<String, Object> response = new HashMap<>();
+        if (recording == null) {
+            response.put("status", "not running");
+            return response;
+        }
+        recording.close();
+        recording = null;
+        logger.info("Stopped Flight Recorder recording '{}'", RECORDING_NAME);
+        response.put("status", "stopped");
+        return response;
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (recording != null) {
+            recording.close();
+            recording = null;
+        }
+        deleteLastDump();
+    }
+
+    private void deleteLastDump() {
+        if (lastDump == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(lastDump);
+        } catch (IOException e) {
+            logger.debug("Could not delete Flight Recorder dump {}: {}", lastDump, e.getMessage());
+        }
+        lastDump = null;
+    }
+
+    /**
+     * Deletes the dump once it has been streamed to the client. Not reported as a file so the
+     * response is written from the input stream rather than transferred directly.
+     */
+    private static final class TemporaryFileResource extends FileSystemResource {
+
+        private TemporaryFileResource(File file) {
+            super(file);
+        }
+
+        @Override
+        public boolean isFile() {
+            return false;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new FilterInputStream(super.getInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        Files.deleteIfExists(getFile().toPath());
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.azurestoragetest.jfr;
+
+import org.springframework.core.MethodParameter;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+/**
+ * Opens the response serialization {@link BlobPhaseEvent} right before a controller's response
+ * body is handed to the message converter. {@link BlobRequestInterceptor} commits it.
+ */
+@ControllerAdvice(basePackages = "com.example.azurestoragetest.controller")
+public class ResponseSerializationAdvice implements ResponseBodyAdvice<Object> {
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return true;
+    }
+
+    @Override
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+                                  Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                  ServerHttpRequest request, ServerHttpResponse response) {
+        if (request instanceof ServletServerHttpRequest) {
+            BlobPhaseEvent event = new BlobPhaseEvent();
+            if (event.isEnabled()) {
+                event.operation = returnType.getExecutable().getName();
+                event.phase = BlobEvents.RESPONSE_SERIALIZATION;
+                event.correlationId = BlobEvents.getCorrelationId();
+                event.begin();
+                ((ServletServerHttpRequest) request).getServletRequest()
+                        .setAttribute(BlobRequestInterceptor.SERIALIZATION_EVENT_ATTRIBUTE, event);
+            }
+        }
+        return body;
+    }
+}
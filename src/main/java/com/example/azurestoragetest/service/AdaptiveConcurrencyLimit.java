@@ -0,0 +1,160 @@
+package com.example.azurestoragetest.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AIMD concurrency limit for a single storage account.
+ *
+ * The limit grows by roughly one per limit's worth of successful calls while it is being used,
+ * is cut multiplicatively when storage throttles, and is trimmed gently when a call takes much
+ * longer than the usual latency of its operation. Callers beyond the limit wait in a short,
+ * bounded queue.
+ *
+ * The limit is cut at most once per window: after a cut, further throttles and slow calls are
+ * ignored until every call that was already in flight at the time of the cut has finished, so a
+ * burst of concurrent 503s halves the limit once rather than once per failed call.
+ */
+class AdaptiveConcurrencyLimit {
+
+    /** Returned by {@link #acquire} when no slot could be taken. */
+    static final long NO_SLOT = -1;
+
+    private static final double THROTTLE_BACKOFF = 0.5;
+    private static final double LATENCY_BACKOFF = 0.9;
+    private static final double BASELINE_WEIGHT = 0.05;
+    private static final int BASELINE_WARMUP = 20;
+    private static final long MIN_SLOW_MILLIS = 10;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueued;
+    private final double latencyTolerance;
+    private final Map<String, Baseline> baselines = new HashMap<>();
+
+    private double limit;
+    private int inFlight;
+    private int queued;
+    private long nextTicket;
+    private long cutTicket;
+    private int inFlightAtCut;
+    private long lastUsedNanos = System.nanoTime();
+
+    AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, int maxQueued, double latencyTolerance) {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueued = maxQueued;
+        this.latencyTolerance = latencyTolerance;
+    }
+
+    /**
+     * Takes a slot, waiting at most {@code timeoutMillis} for one to free up.
+     *
+     * @return the ticket to hand back to {@link #release}, or {@link #NO_SLOT} if the queue is
+     * full or no slot became available in time
+     */
+    synchronized long acquire(long timeoutMillis) throws InterruptedException {
+        lastUsedNanos = System.nanoTime();
+        if (inFlight < (int) limit) {
+            inFlight++;
+            return nextTicket++;
+        }
+        if (queued >= maxQueued) {
+            return NO_SLOT;
+        }
+
+        queued++;
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (inFlight >= (int) limit) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return NO_SLOT;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            inFlight++;
+            return nextTicket++;
+        } finally {
+            queued--;
+        }
+    }
+
+    /**
+     * Returns a slot and adjusts the limit.
+     *
+     * @param operation the operation whose latency baseline the call is judged against, or null
+     *                  for calls whose latency depends on payload size and says nothing about load
+     * @return true if this call cut the limit
+     */
+    synchronized boolean release(long ticket, boolean throttled, String operation, long latencyMillis) {
+        lastUsedNanos = System.nanoTime();
+        boolean saturated = inFlight >= (int) limit / 2;
+        inFlight--;
+        boolean startedBeforeCut = ticket < cutTicket;
+        if (startedBeforeCut) {
+            inFlightAtCut--;
+        }
+
+        boolean slow = operation != null && isSlow(operation, latencyMillis);
+        boolean cut = false;
+        if (throttled || slow) {
+            if (!startedBeforeCut && inFlightAtCut == 0) {
+                limit = Math.max(minLimit, limit * (throttled ? THROTTLE_BACKOFF : LATENCY_BACKOFF));
+                cutTicket = nextTicket;
+                inFlightAtCut = inFlight;
+                cut = true;
+            }
+        } else if (saturated) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        notifyAll();
+        return cut;
+    }
+
+    private boolean isSlow(String operation, long latencyMillis) {
+        Baseline baseline = baselines.computeIfAbsent(operation, key -> new Baseline());
+        boolean slow = baseline.samples >= BASELINE_WARMUP
+                && latencyMillis > Math.max(MIN_SLOW_MILLIS, baseline.millis * latencyTolerance);
+        baseline.record(latencyMillis);
+        return slow;
+    }
+
+    /**
+     * How long the limit has been unused, or -1 while calls hold or wait for a slot.
+     */
+    synchronized long idleNanos(long nowNanos) {
+        return inFlight > 0 || queued > 0 ? -1 : nowNanos - lastUsedNanos;
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    synchronized int getQueued() {
+        return queued;
+    }
+
+    /**
+     * Moving average of one operation's latency, exponentially weighted after warm-up.
+     */
+    private static final class Baseline {
+        private double millis;
+        private int samples;
+
+        void record(long latencyMillis) {
+            // A plain mean during warm-up, so the first sample does not dominate the baseline
+            double weight = samples < BASELINE_WARMUP ? 1.0 / (samples + 1) : BASELINE_WEIGHT;
+            millis += weight * (latencyMillis - millis);
+            if (samples < BASELINE_WARMUP) {
+                samples++;
+            }
+        }
+    }
+}
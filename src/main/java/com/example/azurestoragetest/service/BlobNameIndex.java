@@ -0,0 +1,416 @@
+package com.example.azurestoragetest.service;
+
+import com.azure.core.http.rest.PagedResponse;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.models.BlobErrorCode;
+import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.models.ListBlobsOptions;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Optional in-memory index of the blob names in the configured container.
+ *
+ * The bulk of the index is an immutable sorted array of names built from a full listing, which
+ * keeps millions of names at roughly the cost of the strings themselves. Writes and deletes made
+ * through this service are recorded in a small overlay so they are visible immediately; the
+ * overlay is folded away whenever a periodic reconciliation replaces the snapshot. Queries are
+ * only answered locally while the last successful reconciliation is younger than the configured
+ * staleness bound; otherwise callers fall back to the storage account.
+ *
+ * A reconciliation lists the container in parallel by splitting the name space on leading
+ * characters: a prefix that has more than one page of names is split into one listing per next
+ * character, for every printable ASCII character and every character seen after that prefix in
+ * the first page or the previous snapshot. A name with any other character at a split position
+ * would be missed, so every {@code full-listing-every}-th reconciliation, starting with the one
+ * after bootstrap, lists the whole container sequentially instead and lets the following
+ * reconciliations split on those characters too.
+ */
+@Component
+public class BlobNameIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlobNameIndex.class);
+
+    private static final char FIRST_PRINTABLE = ' ';
+    private static final char LAST_PRINTABLE = '~';
+    private static final int MAX_SPLIT_DEPTH = 8;
+
+    private final BlobServiceClient blobServiceClient;
+    private final String containerName;
+    private final boolean enabled;
+    private final Duration reconcileInterval;
+    private final Duration maxStaleness;
+    private final int pageSize;
+    private final int fullListingEvery;
+    private final ExecutorService listingPool;
+
+    private final ConcurrentSkipListMap<String, Change> overlay = new ConcurrentSkipListMap<>();
+    private volatile String[] snapshot;
+    private volatile long reconciledAtMillis;
+    private int reconciliations;
+
+    private ScheduledExecutorService reconciler;
+
+    @Autowired
+    public BlobNameIndex(@Autowired(required = false) @Qualifier("backgroundBlobServiceClient") BlobServiceClient blobServiceClient,
+                         @Autowired(required = false) @Qualifier("containerName") String containerName,
+                         MeterRegistry meterRegistry,
+                         @Value("${app.storage.index.enabled:false}") boolean enabled,
+                         @Value("${app.storage.index.reconcile-interval:60s}") Duration reconcileInterval,
+                         @Value("${app.storage.index.max-staleness:5m}") Duration maxStaleness,
+                         @Value("${app.storage.index.parallelism:8}") int parallelism,
+                         @Value("${app.storage.index.page-size:5000}") int pageSize,
+                         @Value("${app.storage.index.full-listing-every:10}") int fullListingEvery) {
+        this.blobServiceClient = blobServiceClient;
+        this.containerName = containerName;
+        this.enabled = enabled && blobServiceClient != null;
+        this.reconcileInterval = reconcileInterval;
+        this.maxStaleness = maxStaleness;
+        this.pageSize = pageSize;
+        this.fullListingEvery = fullListingEvery;
+        this.listingPool = this.enabled ? Executors.newFixedThreadPool(parallelism, daemonThreads("blob-index-lister")) : null;
+
+        meterRegistry.gauge("blob.index.entries", this, BlobNameIndex::size);
+        meterRegistry.gauge("blob.index.age.seconds", this, index -> index.ageMillis() / 1000.0);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        logger.info("Blob name index enabled for container '{}' (reconcile every {}, max staleness {})",
+                containerName, reconcileInterval, maxStaleness);
+        reconciler = Executors.newSingleThreadScheduledExecutor(daemonThreads("blob-index-reconciler"));
+        reconciler.scheduleWithFixedDelay(this::reconcileQuietly, 0, reconcileInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (reconciler != null) {
+            reconciler.shutdownNow();
+        }
+        if (listingPool != null) {
+            listingPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Whether queries can currently be answered from the index within the staleness bound.
+     */
+    public boolean isServing() {
+        return enabled && snapshot != null && ageMillis() <= maxStaleness.toMillis();
+    }
+
+    public boolean exists(String blobName) {
+        Change recent = overlay.get(blobName);
+        if (recent != null) {
+            return !recent.deleted;
+        }
+        return Arrays.binarySearch(snapshot, blobName) >= 0;
+    }
+
+    public List<String> list(String prefix) {
+        String[] current = snapshot;
+        String from = prefix != null ? prefix : "";
+        int start = lowerBound(current, from);
+        int end = endOfPrefix(current, start, from);
+
+        Map<String, Change> recent = new TreeMap<>();
+        for (Map.Entry<String, Change> entry : overlay.tailMap(from).entrySet()) {
+            if (!entry.getKey().startsWith(from)) {
+                break;
+            }
+            recent.put(entry.getKey(), entry.getValue());
+        }
+
+        List<String> names = new ArrayList<>(end - start + recent.size());
+        for (int i = start; i < end; i++) {
+            if (!recent.containsKey(current[i])) {
+                names.add(current[i]);
+            }
+        }
+        if (!recent.isEmpty()) {
+            for (Map.Entry<String, Change> entry : recent.entrySet()) {
+                if (!entry.getValue().deleted) {
+                    names.add(entry.getKey());
+                }
+            }
+            Collections.sort(names);
+        }
+        return names;
+    }
+
+    public void recordUpload(String blobName) {
+        if (enabled) {
+            overlay.put(blobName, new Change(false));
+        }
+    }
+
+    public void recordDelete(String blobName) {
+        if (enabled) {
+            overlay.put(blobName, new Change(true));
+        }
+    }
+
+    private void reconcileQuietly() {
+        try {
+            reconcile();
+        } catch (Exception e) {
+            logger.warn("Blob name index reconciliation for container '{}' failed: {}", containerName, e.getMessage());
+        }
+    }
+
+    /**
+     * Rebuilds the snapshot from a full listing of the container.
+     */
+    void reconcile() throws InterruptedException, ExecutionException {
+        long startedNanos = System.nanoTime();
+        long startedMillis = System.currentTimeMillis();
+        BlobContainerClient containerClient = blobServiceClient.getBlobContainerClient(containerName);
+        String[] previous = snapshot;
+        int reconciliation = reconciliations++;
+        boolean sequential = fullListingEvery == 1 || fullListingEvery > 1 && reconciliation % fullListingEvery == 1;
+
+        List<String> names;
+        try {
+            names = sequential ? listAll(containerClient, "") : listPartitioned(containerClient, previous);
+        } catch (BlobStorageException e) {
+            if (e.getErrorCode() != BlobErrorCode.CONTAINER_NOT_FOUND) {
+                throw e;
+            }
+            names = Collections.emptyList();
+        }
+
+        String[] rebuilt = names.toArray(new String[0]);
+        Arrays.sort(rebuilt);
+        synchronized (this) {
+            snapshot = rebuilt;
+            reconciledAtMillis = startedMillis;
+            overlay.values().removeIf(change -> change.recordedAtNanos - startedNanos < 0);
+        }
+        logger.info("Blob name index for container '{}' rebuilt with {} entries in {} ms ({} listing)",
+                containerName, rebuilt.length, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos),
+                sequential ? "sequential" : "partitioned");
+    }
+
+    /**
+     * Lists the container on the listing pool, splitting every prefix with more than one page of
+     * names into one listing per next character.
+     */
+    private List<String> listPartitioned(BlobContainerClient containerClient, String[] previous)
+            throws InterruptedException, ExecutionException {
+        ExecutorCompletionService<Partition> completion = new ExecutorCompletionService<>(listingPool);
+        List<Future<Partition>> pending = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        try {
+            pending.add(completion.submit(() -> listPartition(containerClient, "", 0)));
+            for (int outstanding = 1; outstanding > 0; outstanding--) {
+                Partition partition;
+                try {
+                    partition = completion.take().get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw e;
+                }
+                if (!partition.split) {
+                    names.addAll(partition.names);
+                    continue;
+                }
+                // The first page holds every name up to its last one, so only the longer prefixes from
+                // the last name's next character on need listing; the rest of the page is kept
+                String prefix = partition.prefix;
+                String last = partition.names.isEmpty() ? prefix : partition.names.get(partition.names.size() - 1);
+                char from = last.length() > prefix.length() ? last.charAt(prefix.length()) : Character.MIN_VALUE;
+                for (String name : partition.names) {
+                    if (name.length() == prefix.length() || name.charAt(prefix.length()) < from) {
+                        names.add(name);
+                    }
+                }
+                for (char next : nextCharacters(prefix, partition.names, previous)) {
+                    if (next < from) {
+                        continue;
+                    }
+                    String child = prefix + next;
+                    int depth = partition.depth + 1;
+                    pending.add(completion.submit(() -> listPartition(containerClient, child, depth)));
+                    outstanding++;
+                }
+            }
+        } finally {
+            for (Future<Partition> future : pending) {
+                future.cancel(true);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Lists one prefix. If it has more than one page and may still be split, only the first page
+     * is returned and the caller lists the longer prefixes instead.
+     */
+    private Partition listPartition(BlobContainerClient containerClient, String prefix, int depth) {
+        ListBlobsOptions options = new ListBlobsOptions().setMaxResultsPerPage(pageSize);
+        if (!prefix.isEmpty()) {
+            options.setPrefix(prefix);
+        }
+        Iterator<PagedResponse<BlobItem>> pages = containerClient.listBlobs(options, null).iterableByPage().iterator();
+        List<String> names = new ArrayList<>();
+        if (!pages.hasNext()) {
+            return new Partition(prefix, depth, false, names);
+        }
+        PagedResponse<BlobItem> first = pages.next();
+        for (BlobItem item : first.getValue()) {
+            names.add(item.getName());
+        }
+        if (first.getContinuationToken() != null && depth < MAX_SPLIT_DEPTH) {
+            return new Partition(prefix, depth, true, names);
+        }
+        while (pages.hasNext()) {
+            for (BlobItem item : pages.next().getValue()) {
+                names.add(item.getName());
+            }
+        }
+        return new Partition(prefix, depth, false, names);
+    }
+
+    /**
+     * Characters to split {@code prefix} on: printable ASCII and any character that followed the
+     * prefix in the first page or in the previous snapshot.
+     */
+    private static Set<Character> nextCharacters(String prefix, List<String> firstPage, String[] previous) {
+        Set<Character> next = new TreeSet<>();
+        for (char c = FIRST_PRINTABLE; c <= LAST_PRINTABLE; c++) {
+            next.add(c);
+        }
+        for (String name : firstPage) {
+            if (name.length() > prefix.length()) {
+                next.add(name.charAt(prefix.length()));
+            }
+        }
+        if (previous != null) {
+            int start = lowerBound(previous, prefix);
+            int end = endOfPrefix(previous, start, prefix);
+            for (int i = start; i < end; i++) {
+                if (previous[i].length() > prefix.length()) {
+                    next.add(previous[i].charAt(prefix.length()));
+                }
+            }
+        }
+        return next;
+    }
+
+    private List<String> listAll(BlobContainerClient containerClient, String prefix) {
+        List<String> names = new ArrayList<>();
+        ListBlobsOptions options = new ListBlobsOptions().setMaxResultsPerPage(pageSize);
+        if (!prefix.isEmpty()) {
+            options.setPrefix(prefix);
+        }
+        for (BlobItem item : containerClient.listBlobs(options, null)) {
+            names.add(item.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Number of uploads and deletes not yet folded into the snapshot.
+     */
+    int pendingChanges() {
+        return overlay.size();
+    }
+
+    private int size() {
+        String[] current = snapshot;
+        return current != null ? current.length : 0;
+    }
+
+    private long ageMillis() {
+        return snapshot != null ? System.currentTimeMillis() - reconciledAtMillis : Long.MAX_VALUE;
+    }
+
+    private static int lowerBound(String[] names, String key) {
+        int index = Arrays.binarySearch(names, key);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * End of the run of names starting at {@code start} that begin with {@code prefix}.
+     */
+    private static int endOfPrefix(String[] names, int start, String prefix) {
+        int low = start;
+        int high = names.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (names[middle].startsWith(prefix)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static final class Partition {
+        private final String prefix;
+        private final int depth;
+        private final boolean split;
+        private final List<String> names;
+
+        private Partition(String prefix, int depth, boolean split, List<String> names) {
+            this.prefix = prefix;
+            this.depth = depth;
+            this.split = split;
+            this.names = names;
+        }
+    }
+
+    private static final class Change {
+        private final boolean deleted;
+        private final long recordedAtNanos = System.nanoTime();
+
+        private Change(boolean deleted) {
+            this.deleted = deleted;
+        }
+    }
+}
@@ -1,33 +1,61 @@
 package com.example.azurestoragetest.service;
 
+import com.azure.core.http.rest.PagedIterable;
+import com.azure.core.http.rest.PagedResponse;
 import com.azure.core.util.BinaryData;
+import com.azure.core.util.Context;
 import com.azure.storage.blob.BlobClient;
 import com.azure.storage.blob.BlobContainerClient;
 import com.azure.storage.blob.BlobServiceClient;
 import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.ListBlobsOptions;
+import com.azure.storage.blob.models.TaggedBlobItem;
+import com.azure.storage.blob.options.BlobParallelUploadOptions;
+import com.azure.storage.blob.options.FindBlobsOptions;
+import com.example.azurestoragetest.jfr.BlobEvents;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 @Service
 public class BlobStorageService {
 
     private static final Logger logger = LoggerFactory.getLogger(BlobStorageService.class);
 
+    private static final String SERVICE = "static";
+
     private final BlobServiceClient blobServiceClient;
+    private final BlobServiceClient secondaryBlobServiceClient;
     private final String containerName;
+    private final RequestCoalescer requestCoalescer;
+    private final BlobNameIndex blobNameIndex;
+    private final StorageConcurrencyLimiter concurrencyLimiter;
+    private final HedgedReadExecutor hedgedReadExecutor;
 
     @Autowired
     public BlobStorageService(@Autowired(required = false) BlobServiceClient blobServiceClient,
-                              @Autowired(required = false) @Qualifier("containerName") String containerName) {
+                              @Autowired(required = false) @Qualifier("secondaryBlobServiceClient") BlobServiceClient secondaryBlobServiceClient,
+                              @Autowired(required = false) @Qualifier("containerName") String containerName,
+                              RequestCoalescer requestCoalescer,
+                              BlobNameIndex blobNameIndex,
+                              StorageConcurrencyLimiter concurrencyLimiter,
+                              HedgedReadExecutor hedgedReadExecutor) {
         this.blobServiceClient = blobServiceClient;
+        this.secondaryBlobServiceClient = secondaryBlobServiceClient;
         this.containerName = containerName;
+        this.requestCoalescer = requestCoalescer;
+        this.blobNameIndex = blobNameIndex;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.hedgedReadExecutor = hedgedReadExecutor;
     }
 
     private void checkConfigured() {
@@ -37,61 +65,188 @@ public class BlobStorageService {
         }
     }
 
-    private BlobContainerClient getContainerClient() {
+    private BlobContainerClient getContainerClient(String operation) {
         checkConfigured();
-        BlobContainerClient containerClient = blobServiceClient.getBlobContainerClient(containerName);
-        if (!containerClient.exists()) {
-            logger.info("Container '{}' does not exist. Creating it.", containerName);
-            containerClient.create();
+        return BlobEvents.phase(operation, BlobEvents.CONTAINER_CHECK, () -> {
+            BlobContainerClient containerClient = blobServiceClient.getBlobContainerClient(containerName);
+            if (!containerClient.exists()) {
+                logger.info("Container '{}' does not exist. Creating it.", containerName);
+                containerClient.create();
+            }
+            return containerClient;
+        });
+    }
+
+    /**
+     * Wraps a read against the secondary endpoint for hedging, or returns null when no secondary
+     * is configured. The secondary is treated as read-only, so its container is never created.
+     */
+    private <T> Supplier<T> onSecondary(Function<BlobContainerClient, T> read) {
+        if (secondaryBlobServiceClient == null) {
+            return null;
         }
-        return containerClient;
+        return () -> read.apply(secondaryBlobServiceClient.getBlobContainerClient(containerName));
+    }
+
+    private String accountUrl() {
+        return blobServiceClient != null ? blobServiceClient.getAccountUrl() : "";
+    }
+
+    private String coalescingKey(String blobName) {
+        return accountUrl() + "/" + containerName + "/" + (blobName != null ? blobName : "");
+    }
+
+    /**
+     * Detaches in-flight reads a write to {@code blobName} affects, so reads that start after the
+     * write cannot join a call that began before it. Also used for blobs written by sync jobs.
+     */
+    void forgetReads(String blobName) {
+        requestCoalescer.forget("download", coalescingKey(blobName));
+        requestCoalescer.forget("exists", coalescingKey(blobName));
+        requestCoalescer.forgetAll("list", coalescingKey(null));
+        requestCoalescer.forgetAll("find", coalescingKey(null));
     }
 
-    public String uploadBlob(String blobName, String content) {
+    /**
+     * @param tags     blob index tags to set, or null
+     * @param metadata metadata to set, or null
+     */
+    public String uploadBlob(String blobName, String content, Map<String, String> tags, Map<String, String> metadata) {
         logger.info("Uploading blob '{}' to container '{}'", blobName, containerName);
-        BlobContainerClient containerClient = getContainerClient();
+        BinaryData data = BinaryData.fromString(content);
+        return BlobEvents.transfer(SERVICE, "upload", accountUrl(), containerName, blobName, url -> data.getLength(),
+                () -> concurrencyLimiter.execute(accountUrl(), "upload", () -> doUploadBlob(blobName, data, tags, metadata)));
+    }
+
+    private String doUploadBlob(String blobName, BinaryData data, Map<String, String> tags, Map<String, String> metadata) {
+        BlobContainerClient containerClient = getContainerClient("upload");
         BlobClient blobClient = containerClient.getBlobClient(blobName);
-        blobClient.upload(BinaryData.fromString(content), true);
+        try {
+            BlobEvents.phase("upload", BlobEvents.STORAGE_CALL, () -> {
+                BlobParallelUploadOptions options = new BlobParallelUploadOptions(data)
+                        .setTags(tags)
+                        .setMetadata(metadata);
+                blobClient.uploadWithResponse(options, null, Context.NONE);
+                return null;
+            });
+        } finally {
+            forgetReads(blobName);
+        }
+        blobNameIndex.recordUpload(blobName);
         logger.info("Successfully uploaded blob '{}'", blobName);
         return blobClient.getBlobUrl();
     }
 
     public String downloadBlob(String blobName) {
         logger.info("Downloading blob '{}' from container '{}'", blobName, containerName);
-        BlobContainerClient containerClient = getContainerClient();
-        BlobClient blobClient = containerClient.getBlobClient(blobName);
-
-        if (!blobClient.exists()) {
-            throw new RuntimeException("Blob '" + blobName + "' does not exist");
-        }
+        return BlobEvents.transfer(SERVICE, "download", accountUrl(), containerName, blobName, BinaryData::getLength,
+                () -> requestCoalescer.execute("download", coalescingKey(blobName),
+                        () -> hedgedReadExecutor.execute(accountUrl(), "download",
+                                () -> concurrencyLimiter.execute(accountUrl(), "download",
+                                        () -> doDownloadBlob(getContainerClient("download"), blobName)),
+                                onSecondary(containerClient -> doDownloadBlob(containerClient, blobName))))).toString();
+    }
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        blobClient.downloadStream(outputStream);
-        String content = outputStream.toString();
+    private BinaryData doDownloadBlob(BlobContainerClient containerClient, String blobName) {
+        BlobClient blobClient = containerClient.getBlobClient(blobName);
+        BinaryData content = BlobEvents.phase("download", BlobEvents.STORAGE_CALL, () -> {
+            if (!blobClient.exists()) {
+                throw new RuntimeException("Blob '" + blobName + "' does not exist");
+            }
+            return blobClient.downloadContent();
+        });
         logger.info("Successfully downloaded blob '{}'", blobName);
         return content;
     }
 
-    public List<String> listBlobs() {
+    public List<String> listBlobs(String prefix) {
         logger.info("Listing blobs in container '{}'", containerName);
-        BlobContainerClient containerClient = getContainerClient();
-        List<String> blobNames = new ArrayList<>();
-
-        for (BlobItem blobItem : containerClient.listBlobs()) {
-            blobNames.add(blobItem.getName());
+        if (blobNameIndex.isServing()) {
+            List<String> blobNames = blobNameIndex.list(prefix);
+            logger.info("Found {} blobs in container '{}' (index)", blobNames.size(), containerName);
+            return blobNames;
         }
+        return BlobEvents.listing(SERVICE, accountUrl(), containerName,
+                () -> requestCoalescer.execute("list", coalescingKey(null) + "?prefix=" + (prefix != null ? prefix : ""),
+                        () -> hedgedReadExecutor.execute(accountUrl(), "list",
+                                () -> concurrencyLimiter.execute(accountUrl(), "list",
+                                        () -> doListBlobs(getContainerClient("list"), prefix)),
+                                onSecondary(containerClient -> doListBlobs(containerClient, prefix)))));
+    }
+
+    private List<String> doListBlobs(BlobContainerClient containerClient, String prefix) {
+        List<String> blobNames = BlobEvents.phase("list", BlobEvents.STORAGE_CALL, () -> {
+            List<String> names = new ArrayList<>();
+            for (BlobItem blobItem : containerClient.listBlobs(new ListBlobsOptions().setPrefix(prefix), null)) {
+                names.add(blobItem.getName());
+            }
+            return names;
+        });
 
         logger.info("Found {} blobs in container '{}'", blobNames.size(), containerName);
         return blobNames;
     }
 
+    /**
+     * Runs the server-side find-by-tags query and returns one page of matches, so the cost depends
+     * on the number of matches rather than on the size of the container.
+     *
+     * @param where             tag filter, e.g. {@code "project" = 'alpha' AND "tier" >= '2'}
+     * @param accountWide       search every container in the account instead of the configured one
+     * @param maxResults        page size, or null for the service default
+     * @param continuationToken token from the previous page, or null for the first page
+     */
+    public TaggedBlobPage findBlobsByTags(String where, boolean accountWide, Integer maxResults, String continuationToken) {
+        logger.info("Finding blobs where {} in {}", where, accountWide ? "the account" : "container '" + containerName + "'");
+        return BlobEvents.operation(SERVICE, "find", accountUrl(), accountWide ? null : containerName, null,
+                () -> requestCoalescer.execute("find", coalescingKey(null) + "?where=" + where + "&account=" + accountWide
+                                + "&maxResults=" + maxResults + "&marker=" + continuationToken,
+                        () -> concurrencyLimiter.execute(accountUrl(), "find",
+                                () -> doFindBlobsByTags(where, accountWide, maxResults, continuationToken))));
+    }
+
+    private TaggedBlobPage doFindBlobsByTags(String where, boolean accountWide, Integer maxResults, String continuationToken) {
+        checkConfigured();
+        BlobContainerClient containerClient = accountWide ? null : getContainerClient("find");
+        FindBlobsOptions options = new FindBlobsOptions(where).setMaxResultsPerPage(maxResults);
+        TaggedBlobPage page = BlobEvents.phase("find", BlobEvents.STORAGE_CALL, () -> {
+            PagedIterable<TaggedBlobItem> results = accountWide
+                    ? blobServiceClient.findBlobsByTags(options, null, Context.NONE)
+                    : containerClient.findBlobsByTags(options, null, Context.NONE);
+            Iterator<PagedResponse<TaggedBlobItem>> pages = results.iterableByPage(continuationToken).iterator();
+            return pages.hasNext() ? TaggedBlobPage.of(pages.next()) : TaggedBlobPage.empty();
+        });
+        logger.info("Found {} blobs by tags", page.getBlobs().size());
+        return page;
+    }
+
     public void deleteBlob(String blobName) {
         logger.info("Deleting blob '{}' from container '{}'", blobName, containerName);
-        BlobContainerClient containerClient = getContainerClient();
+        BlobEvents.operation(SERVICE, "delete", accountUrl(), containerName, blobName,
+                () -> concurrencyLimiter.execute(accountUrl(), "delete", () -> {
+                    doDeleteBlob(blobName);
+                    return null;
+                }));
+    }
+
+    private void doDeleteBlob(String blobName) {
+        BlobContainerClient containerClient = getContainerClient("delete");
         BlobClient blobClient = containerClient.getBlobClient(blobName);
 
-        if (blobClient.exists()) {
-            blobClient.delete();
+        boolean deleted;
+        try {
+            deleted = BlobEvents.phase("delete", BlobEvents.STORAGE_CALL, () -> {
+                if (!blobClient.exists()) {
+                    return false;
+                }
+                blobClient.delete();
+                return true;
+            });
+        } finally {
+            forgetReads(blobName);
+        }
+        if (deleted) {
+            blobNameIndex.recordDelete(blobName);
             logger.info("Successfully deleted blob '{}'", blobName);
         } else {
             logger.warn("Blob '{}' does not exist, nothing to delete", blobName);
@@ -99,14 +254,30 @@ public class BlobStorageService {
     }
 
     public boolean blobExists(String blobName) {
-        BlobContainerClient containerClient = getContainerClient();
-        BlobClient blobClient = containerClient.getBlobClient(blobName);
-        return blobClient.exists();
+        if (blobNameIndex.isServing()) {
+            return blobNameIndex.exists(blobName);
+        }
+        return BlobEvents.operation(SERVICE, "exists", accountUrl(), containerName, blobName,
+                () -> requestCoalescer.execute("exists", coalescingKey(blobName),
+                        () -> hedgedReadExecutor.execute(accountUrl(), "exists",
+                                () -> concurrencyLimiter.execute(accountUrl(), "exists",
+                                        () -> doBlobExists(getContainerClient("exists"), blobName)),
+                                onSecondary(containerClient -> doBlobExists(containerClient, blobName)),
+                                Boolean::booleanValue)));
+    }
+
+    private boolean doBlobExists(BlobContainerClient containerClient, String blobName) {
+        return BlobEvents.phase("exists", BlobEvents.STORAGE_CALL, () -> containerClient.getBlobClient(blobName).exists());
     }
 
     public String testConnection() {
+        return BlobEvents.operation(SERVICE, "test", accountUrl(), containerName, null,
+                () -> concurrencyLimiter.execute(accountUrl(), "test", this::doTestConnection));
+    }
+
+    private String doTestConnection() {
         try {
-            BlobContainerClient containerClient = getContainerClient();
+            getContainerClient("test");
             logger.info("Successfully connected to Azure Storage. Container '{}' is accessible.", containerName);
             return "Connection successful. Container '" + containerName + "' is accessible.";
         } catch (Exception e) {
@@ -0,0 +1,988 @@
+package com.example.azurestoragetest.service;
+
+import com.azure.core.util.BinaryData;
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.models.BlobErrorCode;
+import com.azure.storage.blob.models.BlobHttpHeaders;
+import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.BlobItemProperties;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.models.Block;
+import com.azure.storage.blob.models.BlockListType;
+import com.azure.storage.blob.models.ListBlobsOptions;
+import com.azure.storage.blob.options.BlockBlobCommitBlockListOptions;
+import com.azure.storage.blob.options.BlockBlobSimpleUploadOptions;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+import com.example.azurestoragetest.jfr.BlobEvents;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Mirrors the configured container (optionally a prefix of it) to or from a local directory.
+ *
+ * Jobs run in the background. Each blob/file pair is compared by size, then by the ETag and
+ * modification time recorded in the directory's {@link SyncManifest}, then by Content-MD5, and
+ * only differences are transferred. Large files are split into chunks that are moved in
+ * parallel: downloads as ranged GETs written in place into a preallocated file, uploads as
+ * staged blocks committed at the end. Files up to one chunk are moved in a single request;
+ * small downloads go straight to a temporary file that is renamed into place, without the
+ * resume bookkeeping and fsyncs of chunked downloads. Chunk requests share the account's
+ * {@link StorageConcurrencyLimiter} with API traffic and wait out its Retry-After when shed.
+ *
+ * Interrupted work is picked up by running the same job again (or resuming it): downloads keep a
+ * partial file plus a list of finished chunks, and uploads use block IDs derived from the file's
+ * size and modification time so already staged blocks are found and skipped.
+ *
+ * Blobs whose names cannot be mapped to a file below the directory (names ending in "/", names
+ * used for sync bookkeeping, or paths leading outside the directory) are skipped. Finished
+ * jobs are forgotten once they are older than the retention period.
+ */
+@Service
+public class ContainerSyncService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ContainerSyncService.class);
+
+    private static final String SERVICE = "sync";
+
+    static final String PART_SUFFIX = ".blobsync-part";
+    static final String STATE_SUFFIX = ".blobsync-state";
+    static final String TEMP_SUFFIX = ".blobsync-tmp";
+
+    private static final int PAGE_SIZE = 5000;
+    private static final int MAX_BLOCKS = 50_000;
+    private static final int MANIFEST_SAVE_EVERY = 100;
+
+    private final BlobServiceClient blobServiceClient;
+    private final String containerName;
+    private final BlobNameIndex blobNameIndex;
+    private final BlobStorageService blobStorageService;
+    private final StorageConcurrencyLimiter concurrencyLimiter;
+    private final MeterRegistry meterRegistry;
+    private final Path root;
+    private final int parallelism;
+    private final long chunkSize;
+    private final int maxJobs;
+    private final Duration retention;
+
+    private final Map<String, SyncJob> jobs = new ConcurrentHashMap<>();
+
+    private ExecutorService jobRunner;
+    private ExecutorService transferPool;
+
+    @Autowired
+    public ContainerSyncService(@Autowired(required = false) @Qualifier("backgroundBlobServiceClient") BlobServiceClient blobServiceClient,
+                                @Autowired(required = false) @Qualifier("containerName") String containerName,
+                                BlobNameIndex blobNameIndex,
+                                BlobStorageService blobStorageService,
+                                StorageConcurrencyLimiter concurrencyLimiter,
+                                MeterRegistry meterRegistry,
+                                @Value("${app.storage.sync.root:${java.io.tmpdir}/blob-sync}") String root,
+                                @Value("${app.storage.sync.parallelism:8}") int parallelism,
+                                @Value("${app.storage.sync.chunk-size:8MB}") DataSize chunkSize,
+                                @Value("${app.storage.sync.max-jobs:2}") int maxJobs,
+                                @Value("${app.storage.sync.retention:24h}") Duration retention) {
+        this.blobServiceClient = blobServiceClient;
+        this.containerName = containerName;
+        this.blobNameIndex = blobNameIndex;
+        this.blobStorageService = blobStorageService;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.meterRegistry = meterRegistry;
+        this.root = Paths.get(root).toAbsolutePath().normalize();
+        this.parallelism = parallelism;
+        this.chunkSize = chunkSize.toBytes();
+        this.maxJobs = maxJobs;
+        this.retention = retention;
+    }
+
+    @PostConstruct
+    public void start() {
+        jobRunner = Executors.newFixedThreadPool(maxJobs, daemonThreads("blob-sync-job"));
+        transferPool = Executors.newFixedThreadPool(parallelism, daemonThreads("blob-sync-transfer"));
+    }
+
+    @PreDestroy
+    public void stop() {
+        jobs.values().forEach(SyncJob::requestCancel);
+        jobRunner.shutdownNow();
+        transferPool.shutdownNow();
+    }
+
+    private void checkConfigured() {
+        if (blobServiceClient == null) {
+            throw new IllegalStateException("Azure Storage is not configured. " +
+                    "Sync jobs run against the configured container only.");
+        }
+    }
+
+    /**
+     * Starts a sync job.
+     *
+     * @param direction      "download" (container to directory) or "upload" (directory to container)
+     * @param localDirectory directory relative to the configured sync root
+     * @param prefix         optional blob name prefix; blob names map to paths below the directory
+     */
+    public synchronized SyncJob submit(String direction, String localDirectory, String prefix) {
+        checkConfigured();
+        evictFinishedJobs();
+        SyncJob.Direction parsedDirection = parseDirection(direction);
+        Path directory = resolveDirectory(localDirectory);
+        checkDirectoryFree(directory);
+
+        SyncJob job = new SyncJob(UUID.randomUUID().toString(), parsedDirection, directory,
+                prefix != null && !prefix.isEmpty() ? prefix : null);
+        jobs.put(job.getId(), job);
+        schedule(job);
+        return job;
+    }
+
+    /**
+     * Runs a finished, failed or cancelled job again. Files already in sync are skipped and
+     * partially transferred files continue where they stopped.
+     */
+    public synchronized SyncJob resume(String id) {
+        evictFinishedJobs();
+        SyncJob job = jobs.get(id);
+        if (job == null) {
+            return null;
+        }
+        if (job.isActive()) {
+            throw new IllegalStateException("Sync job '" + id + "' is still " + job.getStatus().name().toLowerCase());
+        }
+        checkDirectoryFree(job.getLocalDirectory());
+        schedule(job);
+        return job;
+    }
+
+    public SyncJob cancel(String id) {
+        SyncJob job = jobs.get(id);
+        if (job != null && job.isActive()) {
+            logger.info("Cancelling sync job '{}'", id);
+            job.requestCancel();
+        }
+        return job;
+    }
+
+    public SyncJob getJob(String id) {
+        evictFinishedJobs();
+        return jobs.get(id);
+    }
+
+    public List<SyncJob> getJobs() {
+        evictFinishedJobs();
+        return new ArrayList<>(jobs.values());
+    }
+
+    private synchronized void evictFinishedJobs() {
+        Instant cutoff = Instant.now().minus(retention);
+        jobs.values().removeIf(job -> {
+            Instant finishedAt = job.getFinishedAt();
+            return !job.isActive() && finishedAt != null && finishedAt.isBefore(cutoff);
+        });
+    }
+
+    private void checkDirectoryFree(Path directory) {
+        for (SyncJob other : jobs.values()) {
+            if (other.isActive() && other.getLocalDirectory().equals(directory)) {
+                throw new IllegalStateException("Sync job '" + other.getId() + "' is already running for '" + root.relativize(directory) + "'");
+            }
+        }
+    }
+
+    private void schedule(SyncJob job) {
+        job.queue();
+        logger.info("Queued sync job '{}': {} '{}' prefix '{}' <-> '{}'", job.getId(), job.getDirection(),
+                containerName, job.getPrefix(), job.getLocalDirectory());
+        jobRunner.execute(() -> run(job));
+    }
+
+    private void run(SyncJob job) {
+        BlobEvents.setCorrelationId(job.getId());
+        try {
+            runJob(job);
+        } finally {
+            BlobEvents.setCorrelationId(null);
+        }
+    }
+
+    private void runJob(SyncJob job) {
+        job.start();
+        if (job.isCancelRequested()) {
+            job.finish(SyncJob.Status.CANCELLED, null);
+            return;
+        }
+
+        try {
+            Files.createDirectories(job.getLocalDirectory());
+            SyncManifest manifest = SyncManifest.load(job.getLocalDirectory());
+            BlobContainerClient containerClient = blobServiceClient.getBlobContainerClient(containerName);
+            TransferWindow window = new TransferWindow(parallelism * 4);
+            try {
+                if (job.getDirection() == SyncJob.Direction.DOWNLOAD) {
+                    planDownloads(job, containerClient, manifest, window);
+                } else {
+                    planUploads(job, containerClient, manifest, window);
+                }
+            } finally {
+                window.awaitAll();
+                manifest.save();
+            }
+
+            if (job.isCancelRequested()) {
+                job.finish(SyncJob.Status.CANCELLED, null);
+            } else if (job.filesFailed.get() > 0) {
+                job.finish(SyncJob.Status.FAILED, job.filesFailed.get() + " file(s) failed to sync");
+            } else {
+                job.finish(SyncJob.Status.COMPLETED, null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.finish(SyncJob.Status.CANCELLED, "Interrupted");
+        } catch (Exception e) {
+            logger.error("Sync job '{}' failed", job.getId(), e);
+            job.finish(SyncJob.Status.FAILED, e.getMessage());
+        }
+        logger.info("Sync job '{}' {}: {} transferred, {} skipped, {} failed, {} bytes at {} bytes/s",
+                job.getId(), job.getStatus().name().toLowerCase(), job.filesTransferred.get(), job.filesSkipped.get(),
+                job.filesFailed.get(), job.bytesTransferred.get(), job.getBytesPerSecond());
+    }
+
+    private void planDownloads(SyncJob job, BlobContainerClient containerClient, SyncManifest manifest,
+                               TransferWindow window) throws IOException, InterruptedException {
+        ListBlobsOptions options = new ListBlobsOptions().setPrefix(job.getPrefix()).setMaxResultsPerPage(PAGE_SIZE);
+        for (BlobItem item : containerClient.listBlobs(options, null)) {
+            if (job.isCancelRequested()) {
+                return;
+            }
+            String blobName = item.getName();
+            BlobItemProperties properties = item.getProperties();
+            job.filesTotal.incrementAndGet();
+            Path target = localPath(job.getLocalDirectory(), blobName);
+            if (target == null) {
+                logger.debug("Sync job '{}' skips '{}': name cannot be mapped to a local file", job.getId(), blobName);
+                skipped(job);
+                continue;
+            }
+            try {
+                if (inSync(target, blobName, properties, manifest)) {
+                    skipped(job);
+                    continue;
+                }
+                BlobClient blobClient = containerClient.getBlobClient(blobName);
+                ChunkedTransfer download = properties.getContentLength() <= chunkSize
+                        ? new WholeDownload(job, manifest, blobClient, target, properties)
+                        : new RangedDownload(job, manifest, blobClient, target, properties);
+                download.start(window);
+            } catch (IllegalArgumentException | IOException | BlobStorageException e) {
+                failed(job, blobName, e);
+            }
+        }
+    }
+
+    private void planUploads(SyncJob job, BlobContainerClient containerClient, SyncManifest manifest,
+                             TransferWindow window) throws IOException, InterruptedException {
+        Map<String, BlobItemProperties> remote = new HashMap<>();
+        if (!containerClient.exists()) {
+            logger.info("Container '{}' does not exist. Creating it.", containerName);
+            containerClient.create();
+        } else {
+            ListBlobsOptions options = new ListBlobsOptions().setPrefix(job.getPrefix()).setMaxResultsPerPage(PAGE_SIZE);
+            for (BlobItem item : containerClient.listBlobs(options, null)) {
+                remote.put(item.getName(), item.getProperties());
+            }
+        }
+
+        Path directory = job.getLocalDirectory();
+        try (Stream<Path> files = Files.walk(directory)) {
+            Iterator<Path> iterator = files.filter(Files::isRegularFile).iterator();
+            while (iterator.hasNext() && !job.isCancelRequested()) {
+                Path source = iterator.next();
+                String blobName = blobName(directory, source);
+                if (isSyncFile(blobName) || (job.getPrefix() != null && !blobName.startsWith(job.getPrefix()))) {
+                    continue;
+                }
+                job.filesTotal.incrementAndGet();
+                try {
+                    if (inSync(source, blobName, remote.get(blobName), manifest)) {
+                        skipped(job);
+                        continue;
+                    }
+                    new BlockUpload(job, manifest, containerClient.getBlobClient(blobName).getBlockBlobClient(), source)
+                            .start(window);
+                } catch (IOException | BlobStorageException e) {
+                    failed(job, blobName, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the local file and the blob have the same content, reading the file only when the
+     * manifest cannot answer and the blob has a Content-MD5 to compare with.
+     */
+    private boolean inSync(Path file, String blobName, BlobItemProperties properties, SyncManifest manifest)
+            throws IOException {
+        if (properties == null || !Files.isRegularFile(file)) {
+            return false;
+        }
+        long size = properties.getContentLength();
+        if (Files.size(file) != size) {
+            return false;
+        }
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        if (manifest.matches(blobName, properties.getETag(), size, lastModified)) {
+            return true;
+        }
+        byte[] contentMd5 = properties.getContentMd5();
+        if (contentMd5 != null && Arrays.equals(contentMd5, md5(file))) {
+            manifest.record(blobName, properties.getETag(), size, lastModified);
+            return true;
+        }
+        return false;
+    }
+
+    private Path resolveDirectory(String localDirectory) {
+        if (localDirectory == null || localDirectory.trim().isEmpty()) {
+            throw new IllegalArgumentException("localDirectory is required");
+        }
+        Path directory = root.resolve(localDirectory).normalize();
+        if (!directory.startsWith(root)) {
+            throw new IllegalArgumentException("localDirectory must be inside the sync root");
+        }
+        return directory;
+    }
+
+    private static SyncJob.Direction parseDirection(String direction) {
+        if ("download".equalsIgnoreCase(direction)) {
+            return SyncJob.Direction.DOWNLOAD;
+        }
+        if ("upload".equalsIgnoreCase(direction)) {
+            return SyncJob.Direction.UPLOAD;
+        }
+        throw new IllegalArgumentException("direction must be 'download' or 'upload'");
+    }
+
+    /**
+     * @return the file a blob is synced to, or null if its name cannot be mapped to one
+     */
+    static Path localPath(Path directory, String blobName) {
+        if (blobName.endsWith("/") || isSyncFile(blobName)) {
+            return null;
+        }
+        Path path;
+        try {
+            path = directory.resolve(blobName).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        return path.startsWith(directory) && !path.equals(directory) ? path : null;
+    }
+
+    /**
+     * Block IDs of a blob must all have the same length, hence the fixed-width fields.
+     */
+    static String blockId(int index, long size, long lastModified) {
+        String id = String.format("%06d-%016x-%016x", index, size, lastModified);
+        return Base64.getEncoder().encodeToString(id.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String blobName(Path directory, Path file) {
+        return directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+    }
+
+    private static boolean isSyncFile(String name) {
+        String fileName = name.substring(name.lastIndexOf('/') + 1);
+        return fileName.startsWith(SyncManifest.FILE_NAME)
+                || fileName.endsWith(PART_SUFFIX) || fileName.endsWith(STATE_SUFFIX) || fileName.endsWith(TEMP_SUFFIX);
+    }
+
+    private void skipped(SyncJob job) {
+        job.filesSkipped.incrementAndGet();
+        meterRegistry.counter("blob.sync.files", "direction", direction(job), "outcome", "skipped").increment();
+    }
+
+    private void transferred(SyncJob job, SyncManifest manifest) {
+        job.filesTransferred.incrementAndGet();
+        meterRegistry.counter("blob.sync.files", "direction", direction(job), "outcome", "transferred").increment();
+        try {
+            manifest.saveEvery(MANIFEST_SAVE_EVERY);
+        } catch (IOException e) {
+            logger.warn("Could not save sync manifest for '{}': {}", job.getLocalDirectory(), e.getMessage());
+        }
+    }
+
+    private void failed(SyncJob job, String blobName, Exception e) {
+        logger.warn("Sync job '{}' failed to transfer '{}': {}", job.getId(), blobName, e.getMessage());
+        job.fileFailed(blobName, e.getMessage());
+        meterRegistry.counter("blob.sync.files", "direction", direction(job), "outcome", "failed").increment();
+    }
+
+    private void chunkTransferred(SyncJob job, long bytes) {
+        job.bytesTransferred.addAndGet(bytes);
+        meterRegistry.counter("blob.sync.bytes", "direction", direction(job)).increment(bytes);
+    }
+
+    private static String direction(SyncJob job) {
+        return job.getDirection().name().toLowerCase();
+    }
+
+    private static byte[] md5(Path file) throws IOException {
+        MessageDigest digest = md5Digest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            byte[] buffer = new byte[64 * 1024];
+            while (in.read(buffer) != -1) {
+                // digest is updated as the stream is read
+            }
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest md5Digest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Bounds how many chunk tasks a job has queued or running on the shared transfer pool, so
+     * planning a large container does not queue every chunk up front.
+     */
+    private final class TransferWindow {
+        private final int size;
+        private final Semaphore slots;
+
+        private TransferWindow(int size) {
+            this.size = size;
+            this.slots = new Semaphore(size);
+        }
+
+        void submit(Runnable task) throws InterruptedException {
+            slots.acquire();
+            try {
+                transferPool.execute(BlobEvents.correlated(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        slots.release();
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                slots.release();
+                throw e;
+            }
+        }
+
+        void awaitAll() throws InterruptedException {
+            slots.acquire(size);
+            slots.release(size);
+        }
+    }
+
+    /**
+     * One file split into chunks that are transferred in parallel. Whichever chunk finishes last
+     * completes the file (rename or commit); a failed or cancelled file keeps its progress for
+     * the next run.
+     */
+    private abstract class ChunkedTransfer {
+        final SyncJob job;
+        final SyncManifest manifest;
+        final String blobName;
+        private final AtomicInteger remaining = new AtomicInteger();
+        private final AtomicBoolean aborted = new AtomicBoolean();
+
+        ChunkedTransfer(SyncJob job, SyncManifest manifest, String blobName) {
+            this.job = job;
+            this.manifest = manifest;
+            this.blobName = blobName;
+        }
+
+        /**
+         * Prepares the transfer and returns the indexes of the chunks still to be moved.
+         */
+        abstract List<Integer> open() throws IOException;
+
+        abstract long transferChunk(int index) throws IOException;
+
+        abstract void complete() throws IOException;
+
+        abstract void close(boolean succeeded);
+
+        final void start(TransferWindow window) throws IOException, InterruptedException {
+            List<Integer> chunks;
+            try {
+                chunks = open();
+            } catch (IOException | RuntimeException e) {
+                close(false);
+                throw e;
+            }
+            if (chunks.isEmpty()) {
+                finish();
+                return;
+            }
+            remaining.set(chunks.size());
+            for (int i = 0; i < chunks.size(); i++) {
+                int index = chunks.get(i);
+                try {
+                    window.submit(() -> runChunk(index));
+                } catch (InterruptedException | RuntimeException e) {
+                    fail(e);
+                    if (remaining.addAndGet(-(chunks.size() - i)) == 0) {
+                        finish();
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        private void runChunk(int index) {
+            if (!aborted.get() && !job.isCancelRequested()) {
+                try {
+                    long bytes = BlobEvents.transfer(SERVICE, "sync-" + direction(job), blobServiceClient.getAccountUrl(),
+                            containerName, blobName, Long::longValue, () -> transferWithinLimit(index));
+                    chunkTransferred(job, bytes);
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+            }
+            if (remaining.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+
+        /**
+         * Moves a chunk under the account's concurrency limit, waiting out the Retry-After and
+         * trying again for as long as the limiter sheds it and the file is still wanted.
+         */
+        private long transferWithinLimit(int index) {
+            while (true) {
+                try {
+                    return concurrencyLimiter.execute(blobServiceClient.getAccountUrl(), SERVICE, () -> {
+                        try {
+                            return transferChunk(index);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (StorageOverloadedException e) {
+                    if (aborted.get() || job.isCancelRequested()) {
+                        throw e;
+                    }
+                    try {
+                        TimeUnit.SECONDS.sleep(e.getRetryAfterSeconds());
+                    } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while waiting for a storage request slot", interrupted);
+                    }
+                }
+            }
+        }
+
+        private void fail(Exception e) {
+            if (aborted.compareAndSet(false, true)) {
+                failed(job, blobName, e);
+            }
+        }
+
+        private void finish() {
+            if (aborted.get() || job.isCancelRequested()) {
+                close(false);
+                return;
+            }
+            try {
+                complete();
+                close(true);
+                transferred(job, manifest);
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+                close(false);
+            }
+        }
+    }
+
+    private final class RangedDownload extends ChunkedTransfer {
+        private final BlobClient blobClient;
+        private final Path target;
+        private final Path partial;
+        private final Path state;
+        private final String eTag;
+        private final long size;
+        private RandomAccessFile file;
+        private BufferedWriter stateWriter;
+
+        RangedDownload(SyncJob job, SyncManifest manifest, BlobClient blobClient, Path target,
+                       BlobItemProperties properties) {
+            super(job, manifest, blobClient.getBlobName());
+            this.blobClient = blobClient;
+            this.target = target;
+            this.partial = target.resolveSibling(target.getFileName() + PART_SUFFIX);
+            this.state = target.resolveSibling(target.getFileName() + STATE_SUFFIX);
+            this.eTag = properties.getETag();
+            this.size = properties.getContentLength();
+        }
+
+        /**
+         * The state file starts with the ETag, chunk size and length being downloaded, followed by
+         * the index of every chunk already written and flushed to the partial file.
+         */
+        @Override
+        List<Integer> open() throws IOException {
+            String header = eTag + "|" + chunkSize + "|" + size;
+            BitSet done = new BitSet();
+            if (Files.exists(partial) && Files.exists(state)) {
+                List<String> lines = Files.readAllLines(state, StandardCharsets.UTF_8);
+                if (!lines.isEmpty() && lines.get(0).equals(header)) {
+                    for (String line : lines.subList(1, lines.size())) {
+                        if (!line.isEmpty()) {
+                            done.set(Integer.parseInt(line));
+                        }
+                    }
+                }
+            }
+
+            Files.createDirectories(target.getParent());
+            if (done.isEmpty()) {
+                Files.write(state, Arrays.asList(header), StandardCharsets.UTF_8);
+            }
+            file = new RandomAccessFile(partial.toFile(), "rw");
+            file.setLength(size);
+            stateWriter = Files.newBufferedWriter(state, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+            List<Integer> chunks = new ArrayList<>();
+            int count = (int) ((size + chunkSize - 1) / chunkSize);
+            for (int i = 0; i < count; i++) {
+                if (!done.get(i)) {
+                    chunks.add(i);
+                    job.bytesTotal.addAndGet(chunkLength(i));
+                }
+            }
+            return chunks;
+        }
+
+        @Override
+        long transferChunk(int index) throws IOException {
+            long offset = index * chunkSize;
+            long length = chunkLength(index);
+            FileChannel channel = file.getChannel();
+            blobClient.downloadStreamWithResponse(new PositionalOutputStream(channel, offset), new BlobRange(offset, length),
+                    null, new BlobRequestConditions().setIfMatch(eTag), false, null, Context.NONE);
+            channel.force(false);
+            synchronized (stateWriter) {
+                stateWriter.write(Integer.toString(index));
+                stateWriter.newLine();
+                stateWriter.flush();
+            }
+            return length;
+        }
+
+        @Override
+        void complete() throws IOException {
+            file.getChannel().force(true);
+            file.close();
+            try {
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            manifest.record(blobName, eTag, size, Files.getLastModifiedTime(target).toMillis());
+        }
+
+        @Override
+        void close(boolean succeeded) {
+            try {
+                if (file != null) {
+                    file.close();
+                }
+                if (stateWriter != null) {
+                    stateWriter.close();
+                }
+                if (succeeded) {
+                    Files.deleteIfExists(state);
+                }
+            } catch (IOException e) {
+                logger.warn("Could not close partial download of '{}': {}", blobName, e.getMessage());
+            }
+        }
+
+        private long chunkLength(int index) {
+            return Math.min(chunkSize, size - index * chunkSize);
+        }
+    }
+
+    /**
+     * A blob of at most one chunk, downloaded in one request into a temporary file that is renamed
+     * over the target. A failed download is simply started over, so nothing is kept for resuming
+     * and nothing is forced to disk.
+     */
+    private final class WholeDownload extends ChunkedTransfer {
+        private final BlobClient blobClient;
+        private final Path target;
+        private final String eTag;
+        private final long size;
+        private Path temp;
+
+        WholeDownload(SyncJob job, SyncManifest manifest, BlobClient blobClient, Path target,
+                      BlobItemProperties properties) {
+            super(job, manifest, blobClient.getBlobName());
+            this.blobClient = blobClient;
+            this.target = target;
+            this.eTag = properties.getETag();
+            this.size = properties.getContentLength();
+        }
+
+        @Override
+        List<Integer> open() throws IOException {
+            Files.createDirectories(target.getParent());
+            // Left behind if the blob used to be larger than a chunk
+            Files.deleteIfExists(target.resolveSibling(target.getFileName() + PART_SUFFIX));
+            Files.deleteIfExists(target.resolveSibling(target.getFileName() + STATE_SUFFIX));
+            temp = Files.createTempFile(target.getParent(), "." + target.getFileName() + ".", TEMP_SUFFIX);
+            job.bytesTotal.addAndGet(size);
+            return Collections.singletonList(0);
+        }
+
+        @Override
+        long transferChunk(int index) throws IOException {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                blobClient.downloadStreamWithResponse(out, null, null, new BlobRequestConditions().setIfMatch(eTag),
+                        false, null, Context.NONE);
+            }
+            return size;
+        }
+
+        @Override
+        void complete() throws IOException {
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            manifest.record(blobName, eTag, size, Files.getLastModifiedTime(target).toMillis());
+        }
+
+        @Override
+        void close(boolean succeeded) {
+            try {
+                if (temp != null && !succeeded) {
+                    Files.deleteIfExists(temp);
+                }
+            } catch (IOException e) {
+                logger.warn("Could not delete temporary download of '{}': {}", blobName, e.getMessage());
+            }
+        }
+    }
+
+    private final class BlockUpload extends ChunkedTransfer {
+        private final BlockBlobClient blobClient;
+        private final Path source;
+        private final long size;
+        private final long lastModified;
+        private final long blockSize;
+        private FileChannel channel;
+        private List<String> blockIds;
+        private volatile String eTag;
+
+        BlockUpload(SyncJob job, SyncManifest manifest, BlockBlobClient blobClient, Path source) throws IOException {
+            super(job, manifest, blobClient.getBlobName());
+            this.blobClient = blobClient;
+            this.source = source;
+            this.size = Files.size(source);
+            this.lastModified = Files.getLastModifiedTime(source).toMillis();
+            this.blockSize = Math.max(chunkSize, (size + MAX_BLOCKS - 1) / MAX_BLOCKS);
+        }
+
+        /**
+         * Files up to one chunk are uploaded in a single request. Larger files are staged as
+         * blocks whose IDs are fixed by index, size and modification time, so blocks staged by
+         * an interrupted run of the same file are found in the uncommitted list and skipped.
+         */
+        @Override
+        List<Integer> open() throws IOException {
+            channel = FileChannel.open(source, StandardOpenOption.READ);
+            List<Integer> chunks = new ArrayList<>();
+            if (size <= blockSize) {
+                chunks.add(0);
+                job.bytesTotal.addAndGet(size);
+                return chunks;
+            }
+
+            int count = (int) ((size + blockSize - 1) / blockSize);
+            blockIds = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                blockIds.add(blockId(i, size, lastModified));
+            }
+
+            Set<String> staged = new HashSet<>();
+            try {
+                for (Block block : blobClient.listBlocks(BlockListType.UNCOMMITTED).getUncommittedBlocks()) {
+                    staged.add(block.getName() + "|" + block.getSizeLong());
+                }
+            } catch (BlobStorageException e) {
+                if (e.getErrorCode() != BlobErrorCode.BLOB_NOT_FOUND) {
+                    throw e;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                if (!staged.contains(blockIds.get(i) + "|" + chunkLength(i))) {
+                    chunks.add(i);
+                    job.bytesTotal.addAndGet(chunkLength(i));
+                }
+            }
+            return chunks;
+        }
+
+        @Override
+        long transferChunk(int index) throws IOException {
+            byte[] data = read(index * blockSize, (int) chunkLength(index));
+            if (blockIds == null) {
+                BlockBlobSimpleUploadOptions options = new BlockBlobSimpleUploadOptions(BinaryData.fromBytes(data))
+                        .setHeaders(new BlobHttpHeaders().setContentMd5(md5Digest().digest(data)));
+                try {
+                    eTag = blobClient.uploadWithResponse(options, null, Context.NONE).getValue().getETag();
+                } finally {
+                    blobStorageService.forgetReads(blobName);
+                }
+            } else {
+                blobClient.stageBlock(blockIds.get(index), new ByteArrayInputStream(data), data.length);
+            }
+            return data.length;
+        }
+
+        @Override
+        void complete() throws IOException {
+            if (Files.size(source) != size || Files.getLastModifiedTime(source).toMillis() != lastModified) {
+                throw new IOException("File changed during upload");
+            }
+            if (blockIds != null) {
+                BlockBlobCommitBlockListOptions options = new BlockBlobCommitBlockListOptions(blockIds)
+                        .setHeaders(new BlobHttpHeaders().setContentMd5(md5(source)));
+                try {
+                    eTag = blobClient.commitBlockListWithResponse(options, null, Context.NONE).getValue().getETag();
+                } finally {
+                    blobStorageService.forgetReads(blobName);
+                }
+            }
+            blobNameIndex.recordUpload(blobName);
+            manifest.record(blobName, eTag, size, lastModified);
+        }
+
+        @Override
+        void close(boolean succeeded) {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                logger.warn("Could not close '{}': {}", source, e.getMessage());
+            }
+        }
+
+        private byte[] read(long offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("File changed during upload");
+                }
+            }
+            return buffer.array();
+        }
+
+        private long chunkLength(int index) {
+            return Math.min(blockSize, size - index * blockSize);
+        }
+    }
+
+    /**
+     * Writes a ranged download into its slot of the partial file. Positional writes let chunks
+     * of the same file be written concurrently.
+     */
+    private static final class PositionalOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private long position;
+
+        private PositionalOutputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+}
@@ -1,40 +1,75 @@
 package com.example.azurestoragetest.service;
 
+import com.azure.core.http.rest.PagedIterable;
+import com.azure.core.http.rest.PagedResponse;
 import com.azure.core.util.BinaryData;
+import com.azure.core.util.Context;
 import com.azure.storage.blob.BlobClient;
 import com.azure.storage.blob.BlobContainerClient;
 import com.azure.storage.blob.BlobServiceClient;
 import com.azure.storage.blob.BlobServiceClientBuilder;
 import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.ListBlobsOptions;
+import com.azure.storage.blob.models.TaggedBlobItem;
+import com.azure.storage.blob.options.BlobParallelUploadOptions;
+import com.azure.storage.blob.options.FindBlobsOptions;
 import com.azure.storage.common.StorageSharedKeyCredential;
+import com.azure.storage.common.policy.RequestRetryOptions;
+import com.example.azurestoragetest.jfr.BlobEvents;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 @Service
 public class DynamicBlobStorageService {
 
     private static final Logger logger = LoggerFactory.getLogger(DynamicBlobStorageService.class);
 
-    public BlobServiceClient createBlobServiceClient(String accountName, String accountKey, String blobEndpoint) {
-        StorageSharedKeyCredential credential = new StorageSharedKeyCredential(accountName, accountKey);
+    private static final String SERVICE = "dynamic";
 
-        String endpoint;
+    private final RequestCoalescer requestCoalescer;
+    private final StorageConcurrencyLimiter concurrencyLimiter;
+    private final HedgedReadExecutor hedgedReadExecutor;
+    private final RequestRetryOptions storageRetryOptions;
+
+    public DynamicBlobStorageService(RequestCoalescer requestCoalescer,
+                                     StorageConcurrencyLimiter concurrencyLimiter,
+                                     HedgedReadExecutor hedgedReadExecutor,
+                                     RequestRetryOptions storageRetryOptions) {
+        this.requestCoalescer = requestCoalescer;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.hedgedReadExecutor = hedgedReadExecutor;
+        this.storageRetryOptions = storageRetryOptions;
+    }
+
+    private String resolveEndpoint(String accountName, String blobEndpoint) {
         if (blobEndpoint != null && !blobEndpoint.isEmpty()) {
-            endpoint = blobEndpoint;
-        } else {
-            endpoint = String.format("https://%s.blob.core.windows.net", accountName);
+            return blobEndpoint;
         }
+        return String.format("https://%s.blob.core.windows.net", accountName);
+    }
+
+    public BlobServiceClient createBlobServiceClient(String accountName, String accountKey, String blobEndpoint) {
+        StorageSharedKeyCredential credential = new StorageSharedKeyCredential(accountName, accountKey);
+        String endpoint = resolveEndpoint(accountName, blobEndpoint);
 
         logger.info("Creating dynamic blob service client for endpoint: {}", endpoint);
 
         return new BlobServiceClientBuilder()
                 .endpoint(endpoint)
                 .credential(credential)
+                .retryOptions(storageRetryOptions)
                 .buildClient();
     }
 
@@ -47,10 +82,93 @@ public class DynamicBlobStorageService {
         return containerClient;
     }
 
+    private BlobContainerClient openContainer(String operation, String accountName, String accountKey,
+                                              String blobEndpoint, String containerName) {
+        BlobServiceClient client = BlobEvents.phase(operation, BlobEvents.CLIENT_ACQUISITION,
+                () -> createBlobServiceClient(accountName, accountKey, blobEndpoint));
+        return BlobEvents.phase(operation, BlobEvents.CONTAINER_CHECK,
+                () -> getContainerClient(client, containerName));
+    }
+
+    /**
+     * Wraps a read against the secondary account for hedging, or returns null when the request
+     * carried no secondary. The secondary is treated as read-only, so its container is never created.
+     */
+    private <T> Supplier<T> onSecondary(String operation, SecondaryAccount secondary, String containerName,
+                                        Function<BlobContainerClient, T> read) {
+        if (secondary == null) {
+            return null;
+        }
+        return () -> read.apply(BlobEvents.phase(operation, BlobEvents.CLIENT_ACQUISITION,
+                () -> createBlobServiceClient(secondary.getAccountName(), secondary.getAccountKey(),
+                        secondary.getBlobEndpoint())).getBlobContainerClient(containerName));
+    }
+
+    /**
+     * Each account behind each endpoint gets its own concurrency limit, so one tenant being
+     * throttled cannot take request slots away from the others.
+     */
+    private String accountScope(String accountName, String blobEndpoint) {
+        return resolveEndpoint(accountName, blobEndpoint) + "|" + accountName;
+    }
+
+    private String accountKeyPrefix(String accountName, String blobEndpoint) {
+        return (blobEndpoint != null ? blobEndpoint : "") + "|" + accountName + "|";
+    }
+
+    private String containerKeyPrefix(String accountName, String blobEndpoint, String containerName) {
+        return accountKeyPrefix(accountName, blobEndpoint) + containerName + "|";
+    }
+
+    /**
+     * Requests are only coalesced when they carry the same credentials, so a caller with a wrong
+     * key can never be handed a result that was fetched with someone else's key. The credentials
+     * come after the blob name so writes can detach reads for every caller with one prefix.
+     */
+    private String coalescingKey(String accountName, String accountKey, String blobEndpoint,
+                                 String containerName, String blobName, SecondaryAccount secondary) {
+        return containerKeyPrefix(accountName, blobEndpoint, containerName) + (blobName != null ? blobName : "")
+                + "|" + keyDigest(accountKey)
+                + "|" + (secondary != null ? secondary + "|" + keyDigest(secondary.getAccountKey()) : "");
+    }
+
+    /**
+     * Coalescing keys hold a digest of each account key rather than the key itself, so the secret
+     * never sits in the in-flight map or shows up in a heap dump next to the account name.
+     */
+    private static String keyDigest(String accountKey) {
+        if (accountKey == null) {
+            return "";
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(digest.digest(accountKey.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Detaches in-flight reads a write to {@code blobName} affects, whatever credentials they
+     * were made with, so reads that start after the write cannot join a call that began before it.
+     */
+    private void forgetReads(String accountName, String blobEndpoint, String containerName, String blobName) {
+        String container = containerKeyPrefix(accountName, blobEndpoint, containerName);
+        requestCoalescer.forgetAll("download", container + blobName + "|");
+        requestCoalescer.forgetAll("exists", container + blobName + "|");
+        requestCoalescer.forgetAll("list", container + "|");
+        requestCoalescer.forgetAll("find", accountKeyPrefix(accountName, blobEndpoint));
+    }
+
     public String testConnection(String accountName, String accountKey, String blobEndpoint, String containerName) {
+        return BlobEvents.operation(SERVICE, "test", accountName, containerName, null,
+                () -> concurrencyLimiter.execute(accountScope(accountName, blobEndpoint), "test",
+                        () -> doTestConnection(accountName, accountKey, blobEndpoint, containerName)));
+    }
+
+    private String doTestConnection(String accountName, String accountKey, String blobEndpoint, String containerName) {
         try {
-            BlobServiceClient client = createBlobServiceClient(accountName, accountKey, blobEndpoint);
-            BlobContainerClient containerClient = getContainerClient(client, containerName);
+            openContainer("test", accountName, accountKey, blobEndpoint, containerName);
             logger.info("Successfully connected to Azure Storage. Container '{}' is accessible.", containerName);
             return "Connection successful. Container '" + containerName + "' is accessible.";
         } catch (Exception e) {
@@ -59,58 +177,149 @@ public class DynamicBlobStorageService {
         }
     }
 
-    public String uploadBlob(String accountName, String accountKey, String blobEndpoint,
-                             String containerName, String blobName, String content) {
+    public String uploadBlob(String accountName, String accountKey, String blobEndpoint, String containerName,
+                             String blobName, String content, Map<String, String> tags, Map<String, String> metadata) {
         logger.info("Uploading blob '{}' to container '{}'", blobName, containerName);
-        BlobServiceClient client = createBlobServiceClient(accountName, accountKey, blobEndpoint);
-        BlobContainerClient containerClient = getContainerClient(client, containerName);
+        BinaryData data = BinaryData.fromString(content);
+        return BlobEvents.transfer(SERVICE, "upload", accountName, containerName, blobName, url -> data.getLength(),
+                () -> concurrencyLimiter.execute(accountScope(accountName, blobEndpoint), "upload",
+                        () -> doUploadBlob(accountName, accountKey, blobEndpoint, containerName, blobName, data, tags, metadata)));
+    }
+
+    private String doUploadBlob(String accountName, String accountKey, String blobEndpoint, String containerName,
+                                String blobName, BinaryData data, Map<String, String> tags, Map<String, String> metadata) {
+        BlobContainerClient containerClient = openContainer("upload", accountName, accountKey, blobEndpoint, containerName);
         BlobClient blobClient = containerClient.getBlobClient(blobName);
-        blobClient.upload(BinaryData.fromString(content), true);
+        try {
+            BlobEvents.phase("upload", BlobEvents.STORAGE_CALL, () -> {
+                BlobParallelUploadOptions options = new BlobParallelUploadOptions(data)
+                        .setTags(tags)
+                        .setMetadata(metadata);
+                blobClient.uploadWithResponse(options, null, Context.NONE);
+                return null;
+            });
+        } finally {
+            forgetReads(accountName, blobEndpoint, containerName, blobName);
+        }
         logger.info("Successfully uploaded blob '{}'", blobName);
         return blobClient.getBlobUrl();
     }
 
     public String downloadBlob(String accountName, String accountKey, String blobEndpoint,
-                               String containerName, String blobName) {
+                               String containerName, String blobName, SecondaryAccount secondary) {
         logger.info("Downloading blob '{}' from container '{}'", blobName, containerName);
-        BlobServiceClient client = createBlobServiceClient(accountName, accountKey, blobEndpoint);
-        BlobContainerClient containerClient = getContainerClient(client, containerName);
-        BlobClient blobClient = containerClient.getBlobClient(blobName);
-
-        if (!blobClient.exists()) {
-            throw new RuntimeException("Blob '" + blobName + "' does not exist");
-        }
+        return BlobEvents.transfer(SERVICE, "download", accountName, containerName, blobName, BinaryData::getLength,
+                () -> requestCoalescer.execute("download",
+                        coalescingKey(accountName, accountKey, blobEndpoint, containerName, blobName, secondary),
+                        () -> hedgedReadExecutor.execute(accountScope(accountName, blobEndpoint), "download",
+                                () -> concurrencyLimiter.execute(accountScope(accountName, blobEndpoint), "download",
+                                        () -> doDownloadBlob(openContainer("download", accountName, accountKey, blobEndpoint, containerName), blobName)),
+                                onSecondary("download", secondary, containerName, containerClient -> doDownloadBlob(containerClient, blobName))))).toString();
+    }
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        blobClient.downloadStream(outputStream);
-        String content = outputStream.toString();
+    private BinaryData doDownloadBlob(BlobContainerClient containerClient, String blobName) {
+        BlobClient blobClient = containerClient.getBlobClient(blobName);
+        BinaryData content = BlobEvents.phase("download", BlobEvents.STORAGE_CALL, () -> {
+            if (!blobClient.exists()) {
+                throw new RuntimeException("Blob '" + blobName + "' does not exist");
+            }
+            return blobClient.downloadContent();
+        });
         logger.info("Successfully downloaded blob '{}'", blobName);
         return content;
     }
 
-    public List<String> listBlobs(String accountName, String accountKey, String blobEndpoint, String containerName) {
+    public List<String> listBlobs(String accountName, String accountKey, String blobEndpoint,
+                                  String containerName, String prefix, SecondaryAccount secondary) {
         logger.info("Listing blobs in container '{}'", containerName);
-        BlobServiceClient client = createBlobServiceClient(accountName, accountKey, blobEndpoint);
-        BlobContainerClient containerClient = getContainerClient(client, containerName);
-        List<String> blobNames = new ArrayList<>();
+        return BlobEvents.listing(SERVICE, accountName, containerName,
+                () -> requestCoalescer.execute("list",
+                        coalescingKey(accountName, accountKey, blobEndpoint, containerName, null, secondary)
+                                + "?prefix=" + (prefix != null ? prefix : ""),
+                        () -> hedgedReadExecutor.execute(accountScope(accountName, blobEndpoint), "list",
+                                () -> concurrencyLimiter.execute(accountScope(accountName, blobEndpoint), "list",
+                                        () -> doListBlobs(openContainer("list", accountName, accountKey, blobEndpoint, containerName), prefix)),
+                                onSecondary("list", secondary, containerName, containerClient -> doListBlobs(containerClient, prefix)))));
+    }
 
-        for (BlobItem blobItem : containerClient.listBlobs()) {
-            blobNames.add(blobItem.getName());
-        }
+    private List<String> doListBlobs(BlobContainerClient containerClient, String prefix) {
+        List<String> blobNames = BlobEvents.phase("list", BlobEvents.STORAGE_CALL, () -> {
+            List<String> names = new ArrayList<>();
+            for (BlobItem blobItem : containerClient.listBlobs(new ListBlobsOptions().setPrefix(prefix), null)) {
+                names.add(blobItem.getName());
+            }
+            return names;
+        });
 
-        logger.info("Found {} blobs in container '{}'", blobNames.size(), containerName);
+        logger.info("Found {} blobs in container '{}'", blobNames.size(), containerClient.getBlobContainerName());
         return blobNames;
     }
 
+    /**
+     * Runs the server-side find-by-tags query against the given container, or the whole account
+     * when {@code accountWide} is set, and returns one page of matches.
+     */
+    public TaggedBlobPage findBlobsByTags(String accountName, String accountKey, String blobEndpoint, String containerName,
+                                          String where, boolean accountWide, Integer maxResults, String continuationToken) {
+        logger.info("Finding blobs where {} in {}", where, accountWide ? "account '" + accountName + "'" : "container '" + containerName + "'");
+        return BlobEvents.operation(SERVICE, "find", accountName, accountWide ? null : containerName, null,
+                () -> requestCoalescer.execute("find",
+                        coalescingKey(accountName, accountKey, blobEndpoint, containerName, null, null)
+                                + "?where=" + where + "&account=" + accountWide + "&maxResults=" + maxResults
+                                + "&marker=" + continuationToken,
+                        () -> concurrencyLimiter.execute(accountScope(accountName, blobEndpoint), "find",
+                                () -> doFindBlobsByTags(accountName, accountKey, blobEndpoint, containerName,
+                                        where, accountWide, maxResults, continuationToken))));
+    }
+
+    private TaggedBlobPage doFindBlobsByTags(String accountName, String accountKey, String blobEndpoint, String containerName,
+                                             String where, boolean accountWide, Integer maxResults, String continuationToken) {
+        BlobServiceClient client = accountWide
+                ? BlobEvents.phase("find", BlobEvents.CLIENT_ACQUISITION, () -> createBlobServiceClient(accountName, accountKey, blobEndpoint))
+                : null;
+        BlobContainerClient containerClient = accountWide
+                ? null
+                : openContainer("find", accountName, accountKey, blobEndpoint, containerName);
+        FindBlobsOptions options = new FindBlobsOptions(where).setMaxResultsPerPage(maxResults);
+        TaggedBlobPage page = BlobEvents.phase("find", BlobEvents.STORAGE_CALL, () -> {
+            PagedIterable<TaggedBlobItem> results = accountWide
+                    ? client.findBlobsByTags(options, null, Context.NONE)
+                    : containerClient.findBlobsByTags(options, null, Context.NONE);
+            Iterator<PagedResponse<TaggedBlobItem>> pages = results.iterableByPage(continuationToken).iterator();
+            return pages.hasNext() ? TaggedBlobPage.of(pages.next()) : TaggedBlobPage.empty();
+        });
+        logger.info("Found {} blobs by tags", page.getBlobs().size());
+        return page;
+    }
+
     public void deleteBlob(String accountName, String accountKey, String blobEndpoint,
                            String containerName, String blobName) {
         logger.info("Deleting blob '{}' from container '{}'", blobName, containerName);
-        BlobServiceClient client = createBlobServiceClient(accountName, accountKey, blobEndpoint);
-        BlobContainerClient containerClient = getContainerClient(client, containerName);
+        BlobEvents.operation(SERVICE, "delete", accountName, containerName, blobName,
+                () -> concurrencyLimiter.execute(accountScope(accountName, blobEndpoint), "delete", () -> {
+                    doDeleteBlob(accountName, accountKey, blobEndpoint, containerName, blobName);
+                    return null;
+                }));
+    }
+
+    private void doDeleteBlob(String accountName, String accountKey, String blobEndpoint,
+                              String containerName, String blobName) {
+        BlobContainerClient containerClient = openContainer("delete", accountName, accountKey, blobEndpoint, containerName);
         BlobClient blobClient = containerClient.getBlobClient(blobName);
 
-        if (blobClient.exists()) {
-            blobClient.delete();
+        boolean deleted;
+        try {
+            deleted = BlobEvents.phase("delete", BlobEvents.STORAGE_CALL, () -> {
+                if (!blobClient.exists()) {
+                    return false;
+                }
+                blobClient.delete();
+                return true;
+            });
+        } finally {
+            forgetReads(accountName, blobEndpoint, containerName, blobName);
+        }
+        if (deleted) {
             logger.info("Successfully deleted blob '{}'", blobName);
         } else {
             logger.warn("Blob '{}' does not exist, nothing to delete", blobName);
@@ -118,10 +327,18 @@ public class DynamicBlobStorageService {
     }
 
     public boolean blobExists(String accountName, String accountKey, String blobEndpoint,
-                              String containerName, String blobName) {
-        BlobServiceClient client = createBlobServiceClient(accountName, accountKey, blobEndpoint);
-        BlobContainerClient containerClient = getContainerClient(client, containerName);
-        BlobClient blobClient = containerClient.getBlobClient(blobName);
-        return blobClient.exists();
+                              String containerName, String blobName, SecondaryAccount secondary) {
+        return BlobEvents.operation(SERVICE, "exists", accountName, containerName, blobName,
+                () -> requestCoalescer.execute("exists",
+                        coalescingKey(accountName, accountKey, blobEndpoint, containerName, blobName, secondary),
+                        () -> hedgedReadExecutor.execute(accountScope(accountName, blobEndpoint), "exists",
+                                () -> concurrencyLimiter.execute(accountScope(accountName, blobEndpoint), "exists",
+                                        () -> doBlobExists(openContainer("exists", accountName, accountKey, blobEndpoint, containerName), blobName)),
+                                onSecondary("exists", secondary, containerName, containerClient -> doBlobExists(containerClient, blobName)),
+                                Boolean::booleanValue)));
+    }
+
+    private boolean doBlobExists(BlobContainerClient containerClient, String blobName) {
+        return BlobEvents.phase("exists", BlobEvents.STORAGE_CALL, () -> containerClient.getBlobClient(blobName).exists());
     }
 }
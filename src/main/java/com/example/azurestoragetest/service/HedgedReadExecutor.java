@@ -0,0 +1,293 @@
+package com.example.azurestoragetest.service;
+
+import com.example.azurestoragetest.jfr.BlobEvents;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Hedged reads against a secondary endpoint.
+ *
+ * The primary read is started right away. If it has not answered after the configured
+ * percentile of recent primary latencies, the same read is sent to the secondary and whichever
+ * succeeds first wins; the other call is cancelled. If one side fails, the other side's result
+ * is still used.
+ *
+ * A geo-replicated secondary lags the primary, typically by seconds but with no upper bound. A
+ * secondary result only wins when the caller's {@code trusted} predicate accepts it, so a
+ * replica that has not caught up yet cannot answer "does not exist" for a blob the primary
+ * already has; not-found errors from the secondary likewise fall back to the primary. Content
+ * and listings returned by the secondary can still be stale or miss recent writes.
+ *
+ * Latencies are tracked per storage account and operation, so a slow or distant tenant does not
+ * move the hedge delay of the others. Like the concurrency limits, at most {@code max-accounts}
+ * accounts are tracked and accounts idle for longer than the idle timeout are forgotten.
+ */
+@Component
+public class HedgedReadExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(HedgedReadExecutor.class);
+
+    private static final int WINDOW_SIZE = 1000;
+    private static final int RECOMPUTE_EVERY = 50;
+
+    private final ConcurrentMap<String, AccountLatencies> latencies = new ConcurrentHashMap<>();
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final double percentile;
+    private final long minDelayMillis;
+    private final long maxDelayMillis;
+    private final int maxAccounts;
+    private final long idleTimeoutNanos;
+    private final ThreadPoolExecutor executor;
+    private volatile long nextEvictionNanos;
+
+    public HedgedReadExecutor(MeterRegistry meterRegistry,
+                              @Value("${app.storage.hedging.enabled:false}") boolean enabled,
+                              @Value("${app.storage.hedging.percentile:95}") double percentile,
+                              @Value("${app.storage.hedging.min-delay:20ms}") Duration minDelay,
+                              @Value("${app.storage.hedging.max-delay:2s}") Duration maxDelay,
+                              @Value("${app.storage.hedging.max-threads:64}") int maxThreads,
+                              @Value("${app.storage.hedging.max-accounts:1000}") int maxAccounts,
+                              @Value("${app.storage.hedging.idle-timeout:10m}") Duration idleTimeout) {
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.percentile = percentile;
+        this.minDelayMillis = minDelay.toMillis();
+        this.maxDelayMillis = maxDelay.toMillis();
+        this.maxAccounts = maxAccounts;
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        this.nextEvictionNanos = System.nanoTime() + idleTimeoutNanos;
+
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "hedged-read-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Runs {@code primary}, hedging with {@code secondary} when hedging is enabled and a
+     * secondary is available.
+     *
+     * @param account   the primary storage account, whose own latencies set the hedge delay
+     * @param secondary the same read against the secondary endpoint, or null if there is none
+     */
+    public <T> T execute(String account, String operation, Supplier<T> primary, Supplier<T> secondary) {
+        return execute(account, operation, primary, secondary, value -> true);
+    }
+
+    /**
+     * Like {@link #execute(String, String, Supplier, Supplier)}, but a secondary result only wins
+     * if {@code trusted} accepts it; otherwise the primary's answer is awaited.
+     */
+    public <T> T execute(String account, String operation, Supplier<T> primary, Supplier<T> secondary,
+                         Predicate<T> trusted) {
+        if (!enabled || secondary == null) {
+            return primary.get();
+        }
+
+        meterRegistry.counter("blob.hedge.requests", "operation", operation).increment();
+        LatencyWindow window = windowFor(account, operation);
+        ExecutorCompletionService<T> completion = new ExecutorCompletionService<>(executor);
+
+        Future<T> primaryFuture;
+        try {
+            primaryFuture = completion.submit(timed(BlobEvents.correlated(primary), window));
+        } catch (RejectedExecutionException e) {
+            logger.debug("Hedging pool exhausted, running '{}' without hedge", operation);
+            return primary.get();
+        }
+
+        Future<T> secondaryFuture = null;
+        try {
+            Future<T> first = completion.poll(window.delayMillis(), TimeUnit.MILLISECONDS);
+            if (first != null) {
+                return result(first);
+            }
+
+            try {
+                secondaryFuture = completion.submit(BlobEvents.correlated(secondary)::get);
+            } catch (RejectedExecutionException e) {
+                return result(primaryFuture);
+            }
+            meterRegistry.counter("blob.hedge.issued", "operation", operation).increment();
+
+            if (completion.take() == primaryFuture) {
+                try {
+                    return primaryFuture.get();
+                } catch (ExecutionException primaryFailed) {
+                    completion.take();
+                    T value = secondaryResult(operation, secondaryFuture, trusted);
+                    return value != null ? value : result(primaryFuture);
+                }
+            }
+            T value = secondaryResult(operation, secondaryFuture, trusted);
+            return value != null ? value : result(primaryFuture);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for storage read", e);
+        } finally {
+            primaryFuture.cancel(true);
+            if (secondaryFuture != null) {
+                secondaryFuture.cancel(true);
+            }
+        }
+    }
+
+    private LatencyWindow windowFor(String account, String operation) {
+        AccountLatencies accountLatencies = latencies.get(account);
+        if (accountLatencies == null) {
+            if (latencies.size() >= maxAccounts || System.nanoTime() - nextEvictionNanos > 0) {
+                evictIdle();
+            }
+            accountLatencies = latencies.computeIfAbsent(account, key -> new AccountLatencies());
+        }
+        return accountLatencies.window(operation);
+    }
+
+    /**
+     * Drops every account idle for longer than the idle timeout, and the longest-idle ones while
+     * the map is still full.
+     */
+    private synchronized void evictIdle() {
+        long now = System.nanoTime();
+        nextEvictionNanos = now + idleTimeoutNanos;
+        latencies.values().removeIf(accountLatencies -> now - accountLatencies.lastUsedNanos > idleTimeoutNanos);
+
+        while (latencies.size() >= maxAccounts) {
+            String longestIdle = null;
+            long oldest = Long.MAX_VALUE;
+            for (Map.Entry<String, AccountLatencies> entry : latencies.entrySet()) {
+                if (longestIdle == null || entry.getValue().lastUsedNanos - oldest < 0) {
+                    longestIdle = entry.getKey();
+                    oldest = entry.getValue().lastUsedNanos;
+                }
+            }
+            latencies.remove(longestIdle);
+        }
+    }
+
+    /**
+     * Current hedge delay for one account and operation, or -1 if none has been tracked.
+     */
+    long delayMillis(String account, String operation) {
+        AccountLatencies accountLatencies = latencies.get(account);
+        LatencyWindow window = accountLatencies != null ? accountLatencies.windows.get(operation) : null;
+        return window != null ? window.delayMillis() : -1;
+    }
+
+    /**
+     * @return the completed secondary's result if it succeeded and is trusted, otherwise null
+     */
+    private <T> T secondaryResult(String operation, Future<T> secondaryFuture, Predicate<T> trusted)
+            throws InterruptedException {
+        try {
+            T value = secondaryFuture.get();
+            if (value != null && trusted.test(value)) {
+                meterRegistry.counter("blob.hedge.wins", "operation", operation).increment();
+                return value;
+            }
+            meterRegistry.counter("blob.hedge.untrusted", "operation", operation).increment();
+        } catch (ExecutionException e) {
+            logger.debug("Hedged '{}' read failed on the secondary: {}", operation, e.getCause().getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Records the primary's latency however the call ends. A primary cancelled because the
+     * secondary won is counted with the time it had taken so far, which is at least the hedge
+     * delay; leaving it out would drop exactly the slow calls and drag the percentile down.
+     */
+    private static <T> Callable<T> timed(Supplier<T> call, LatencyWindow window) {
+        return () -> {
+            long started = System.nanoTime();
+            try {
+                return call.get();
+            } finally {
+                window.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+            }
+        };
+    }
+
+    private static <T> T result(Future<T> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * The latency windows of one storage account.
+     */
+    private final class AccountLatencies {
+        private final ConcurrentMap<String, LatencyWindow> windows = new ConcurrentHashMap<>();
+        private volatile long lastUsedNanos = System.nanoTime();
+
+        LatencyWindow window(String operation) {
+            lastUsedNanos = System.nanoTime();
+            return windows.computeIfAbsent(operation, key -> new LatencyWindow());
+        }
+    }
+
+    /**
+     * Ring buffer of recent primary latencies. The hedge delay is recomputed every
+     * {@value #RECOMPUTE_EVERY} samples rather than on every request.
+     */
+    private final class LatencyWindow {
+        private final long[] samples = new long[WINDOW_SIZE];
+        private int count;
+        private volatile long delayMillis = maxDelayMillis;
+
+        synchronized void record(long latencyMillis) {
+            samples[count % WINDOW_SIZE] = latencyMillis;
+            count++;
+            if (count % RECOMPUTE_EVERY == 0) {
+                long[] sorted = Arrays.copyOf(samples, Math.min(count, WINDOW_SIZE));
+                Arrays.sort(sorted);
+                int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+                long value = sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+                delayMillis = Math.max(minDelayMillis, Math.min(maxDelayMillis, value));
+            }
+        }
+
+        long delayMillis() {
+            return delayMillis;
+        }
+    }
+}
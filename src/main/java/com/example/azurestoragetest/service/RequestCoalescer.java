@@ -0,0 +1,106 @@
+package com.example.azurestoragetest.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Single-flight coalescing of identical storage reads.
+ *
+ * While a call for a given key is in flight, concurrent callers with the same key wait for
+ * that call and share its result (or its exception) instead of issuing their own request.
+ * Nothing is cached: once the call completes, the next caller triggers a fresh one.
+ *
+ * Writes call {@link #forget} for the reads they affect once they finish, so a caller that
+ * reads its own write starts a fresh call instead of joining one that began before the write.
+ */
+@Component
+public class RequestCoalescer {
+
+    private static final Logger logger = LoggerFactory.getLogger(RequestCoalescer.class);
+
+    private final ConcurrentMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+
+    public RequestCoalescer(MeterRegistry meterRegistry,
+                            @Value("${app.storage.coalescing.enabled:true}") boolean enabled) {
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String operation, String key, Supplier<T> call) {
+        if (!enabled) {
+            return call.get();
+        }
+
+        String flightKey = operation + "|" + key;
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(flightKey, flight);
+
+        if (existing != null) {
+            meterRegistry.counter("blob.requests.coalesced", "operation", operation).increment();
+            logger.debug("Joining in-flight '{}' request", operation);
+            return (T) await(existing);
+        }
+
+        meterRegistry.counter("blob.requests.executed", "operation", operation).increment();
+        try {
+            T result = call.get();
+            flight.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(flightKey, flight);
+        }
+    }
+
+    /**
+     * Detaches the in-flight call for {@code key}, if any. Callers already waiting on it still get
+     * its result; later callers start a new call.
+     */
+    public void forget(String operation, String key) {
+        if (enabled) {
+            inFlight.remove(operation + "|" + key);
+        }
+    }
+
+    /**
+     * Like {@link #forget} for every in-flight call whose key starts with {@code keyPrefix}.
+     */
+    public void forgetAll(String operation, String keyPrefix) {
+        if (enabled) {
+            String flightKeyPrefix = operation + "|" + keyPrefix;
+            inFlight.keySet().removeIf(flightKey -> flightKey.startsWith(flightKeyPrefix));
+        }
+    }
+
+    private Object await(CompletableFuture<Object> flight) {
+        try {
+            return flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for in-flight storage request", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause.getMessage(), cause);
+        }
+    }
+}
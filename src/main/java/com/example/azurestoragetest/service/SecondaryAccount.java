@@ -0,0 +1,48 @@
+package com.example.azurestoragetest.service;
+
+/**
+ * Read replica passed with a dynamic request: the RA-GRS secondary endpoint of the same
+ * account, or a separate replica account. Used only for hedged reads.
+ */
+public class SecondaryAccount {
+
+    private final String blobEndpoint;
+    private final String accountName;
+    private final String accountKey;
+
+    private SecondaryAccount(String blobEndpoint, String accountName, String accountKey) {
+        this.blobEndpoint = blobEndpoint;
+        this.accountName = accountName;
+        this.accountKey = accountKey;
+    }
+
+    /**
+     * @return the secondary account, or null when no secondary endpoint was given
+     */
+    public static SecondaryAccount of(String blobEndpoint, String accountName, String accountKey) {
+        if (blobEndpoint == null || blobEndpoint.isEmpty()) {
+            return null;
+        }
+        return new SecondaryAccount(blobEndpoint, accountName, accountKey);
+    }
+
+    public String getBlobEndpoint() {
+        return blobEndpoint;
+    }
+
+    public String getAccountName() {
+        return accountName;
+    }
+
+    public String getAccountKey() {
+        return accountKey;
+    }
+
+    /**
+     * Identifies the replica without its account key, which must never end up in logs or keys.
+     */
+    @Override
+    public String toString() {
+        return blobEndpoint + "|" + accountName;
+    }
+}
@@ -0,0 +1,184 @@
+package com.example.azurestoragetest.service;
+
+import com.azure.core.exception.HttpResponseException;
+import com.azure.storage.blob.models.BlobErrorCode;
+import com.azure.storage.blob.models.BlobStorageException;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Bounds the number of in-flight storage calls per storage account.
+ *
+ * Every account (for dynamic endpoints: every endpoint and account name sent in the headers)
+ * gets its own {@link AdaptiveConcurrencyLimit}, so a tenant that is being throttled only
+ * sheds its own requests. Requests that cannot get a slot within the queue timeout fail fast
+ * with {@link StorageOverloadedException} instead of tying up a request thread in SDK retries.
+ *
+ * Limits idle for longer than the idle timeout are dropped when new accounts show up, and at most
+ * {@code max-accounts} are kept: when the map is full the longest-idle account makes room, and
+ * requests for new accounts are shed while every tracked account is busy.
+ */
+@Component
+public class StorageConcurrencyLimiter {
+
+    private static final Logger logger = LoggerFactory.getLogger(StorageConcurrencyLimiter.class);
+
+    /**
+     * Operations whose latency grows with the size of the blob or listing, so a slow call says
+     * nothing about load on the account and only throttling shrinks the limit.
+     */
+    private static final Set<String> SIZE_DEPENDENT_OPERATIONS =
+            new HashSet<>(Arrays.asList("upload", "download", "list", "find", "sync"));
+
+    private final ConcurrentMap<String, AdaptiveConcurrencyLimit> limits = new ConcurrentHashMap<>();
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueued;
+    private final long queueTimeoutMillis;
+    private final double latencyTolerance;
+    private final long retryAfterSeconds;
+    private final int maxAccounts;
+    private final long idleTimeoutNanos;
+    private volatile long nextEvictionNanos;
+
+    public StorageConcurrencyLimiter(MeterRegistry meterRegistry,
+                                     @Value("${app.storage.limiter.enabled:true}") boolean enabled,
+                                     @Value("${app.storage.limiter.initial-limit:20}") int initialLimit,
+                                     @Value("${app.storage.limiter.min-limit:1}") int minLimit,
+                                     @Value("${app.storage.limiter.max-limit:200}") int maxLimit,
+                                     @Value("${app.storage.limiter.max-queued:50}") int maxQueued,
+                                     @Value("${app.storage.limiter.queue-timeout:100ms}") Duration queueTimeout,
+                                     @Value("${app.storage.limiter.latency-tolerance:2.0}") double latencyTolerance,
+                                     @Value("${app.storage.limiter.retry-after:1s}") Duration retryAfter,
+                                     @Value("${app.storage.limiter.max-accounts:1000}") int maxAccounts,
+                                     @Value("${app.storage.limiter.idle-timeout:10m}") Duration idleTimeout) {
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueued = maxQueued;
+        this.queueTimeoutMillis = queueTimeout.toMillis();
+        this.latencyTolerance = latencyTolerance;
+        this.retryAfterSeconds = Math.max(1, retryAfter.getSeconds());
+        this.maxAccounts = maxAccounts;
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        this.nextEvictionNanos = System.nanoTime() + idleTimeoutNanos;
+    }
+
+    public <T> T execute(String account, String operation, Supplier<T> call) {
+        if (!enabled) {
+            return call.get();
+        }
+
+        AdaptiveConcurrencyLimit limit = limitFor(account);
+        long ticket = acquire(limit);
+
+        long started = System.nanoTime();
+        boolean throttled = false;
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            throttled = isThrottled(e);
+            if (throttled) {
+                meterRegistry.counter("blob.limiter.throttled").increment();
+            }
+            throw e;
+        } finally {
+            String baseline = SIZE_DEPENDENT_OPERATIONS.contains(operation) ? null : operation;
+            if (limit.release(ticket, throttled, baseline, (System.nanoTime() - started) / 1_000_000)) {
+                logger.warn("Storage {} '{}' call, concurrency limit reduced to {}",
+                        throttled ? "throttled" : "slowed down", operation, limit.getLimit());
+            }
+        }
+    }
+
+    private AdaptiveConcurrencyLimit limitFor(String account) {
+        AdaptiveConcurrencyLimit limit = limits.get(account);
+        if (limit != null) {
+            return limit;
+        }
+        if (limits.size() >= maxAccounts || System.nanoTime() - nextEvictionNanos > 0) {
+            evictIdle();
+            if (limits.size() >= maxAccounts) {
+                meterRegistry.counter("blob.limiter.rejected").increment();
+                throw new StorageOverloadedException("Too many storage accounts in use, retry later", retryAfterSeconds);
+            }
+        }
+        return limits.computeIfAbsent(account,
+                key -> new AdaptiveConcurrencyLimit(initialLimit, minLimit, maxLimit, maxQueued, latencyTolerance));
+    }
+
+    /**
+     * Drops every limit idle for longer than the idle timeout, or the longest-idle one if none is.
+     */
+    private synchronized void evictIdle() {
+        long now = System.nanoTime();
+        nextEvictionNanos = now + idleTimeoutNanos;
+        int before = limits.size();
+        limits.values().removeIf(limit -> limit.idleNanos(now) > idleTimeoutNanos);
+
+        if (limits.size() >= maxAccounts) {
+            String longestIdle = null;
+            long longestIdleNanos = -1;
+            for (Map.Entry<String, AdaptiveConcurrencyLimit> entry : limits.entrySet()) {
+                long idle = entry.getValue().idleNanos(now);
+                if (idle > longestIdleNanos) {
+                    longestIdle = entry.getKey();
+                    longestIdleNanos = idle;
+                }
+            }
+            if (longestIdle != null) {
+                limits.remove(longestIdle);
+            }
+        }
+        logger.debug("Evicted {} idle storage account limits", before - limits.size());
+    }
+
+    private long acquire(AdaptiveConcurrencyLimit limit) {
+        long ticket;
+        try {
+            ticket = limit.acquire(queueTimeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a storage request slot", e);
+        }
+        if (ticket == AdaptiveConcurrencyLimit.NO_SLOT) {
+            meterRegistry.counter("blob.limiter.rejected").increment();
+            logger.debug("Shedding storage request: {} in flight, limit {}", limit.getInFlight(), limit.getLimit());
+            throw new StorageOverloadedException("Storage account is overloaded, retry later", retryAfterSeconds);
+        }
+        return ticket;
+    }
+
+    private static boolean isThrottled(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof HttpResponseException && ((HttpResponseException) cause).getResponse() != null) {
+                int status = ((HttpResponseException) cause).getResponse().getStatusCode();
+                if (status == 429 || status == 503) {
+                    return true;
+                }
+                if (status == 500 && cause instanceof BlobStorageException
+                        && BlobErrorCode.OPERATION_TIMED_OUT.equals(((BlobStorageException) cause).getErrorCode())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
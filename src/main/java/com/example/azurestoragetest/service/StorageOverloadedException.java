@@ -0,0 +1,19 @@
+package com.example.azurestoragetest.service;
+
+/**
+ * Thrown when a storage account already has as many requests in flight and queued as its
+ * concurrency limit allows. Callers should retry after {@link #getRetryAfterSeconds()}.
+ */
+public class StorageOverloadedException extends RuntimeException {
+
+    private final long retryAfterSeconds;
+
+    public StorageOverloadedException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
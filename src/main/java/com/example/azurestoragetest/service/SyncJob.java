@@ -0,0 +1,148 @@
+package com.example.azurestoragetest.service;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A container-to-directory sync job and its progress.
+ */
+public class SyncJob {
+
+    public enum Direction {
+        DOWNLOAD, UPLOAD
+    }
+
+    public enum Status {
+        PENDING, RUNNING, COMPLETED, FAILED, CANCELLED
+    }
+
+    private final String id;
+    private final Direction direction;
+    private final Path localDirectory;
+    private final String prefix;
+
+    final AtomicLong filesTotal = new AtomicLong();
+    final AtomicLong filesTransferred = new AtomicLong();
+    final AtomicLong filesSkipped = new AtomicLong();
+    final AtomicLong filesFailed = new AtomicLong();
+    final AtomicLong bytesTotal = new AtomicLong();
+    final AtomicLong bytesTransferred = new AtomicLong();
+
+    private volatile Status status = Status.PENDING;
+    private volatile boolean cancelRequested;
+    private volatile Instant startedAt;
+    private volatile Instant finishedAt;
+    private volatile String error;
+    private volatile String lastFileError;
+
+    SyncJob(String id, Direction direction, Path localDirectory, String prefix) {
+        this.id = id;
+        this.direction = direction;
+        this.localDirectory = localDirectory;
+        this.prefix = prefix;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Direction getDirection() {
+        return direction;
+    }
+
+    public Path getLocalDirectory() {
+        return localDirectory;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public Instant getFinishedAt() {
+        return finishedAt;
+    }
+
+    public boolean isActive() {
+        return status == Status.PENDING || status == Status.RUNNING;
+    }
+
+    boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    void requestCancel() {
+        cancelRequested = true;
+    }
+
+    void queue() {
+        filesTotal.set(0);
+        filesTransferred.set(0);
+        filesSkipped.set(0);
+        filesFailed.set(0);
+        bytesTotal.set(0);
+        bytesTransferred.set(0);
+        cancelRequested = false;
+        error = null;
+        lastFileError = null;
+        startedAt = null;
+        finishedAt = null;
+        status = Status.PENDING;
+    }
+
+    void start() {
+        startedAt = Instant.now();
+        status = Status.RUNNING;
+    }
+
+    void fileFailed(String name, String message) {
+        filesFailed.incrementAndGet();
+        lastFileError = name + ": " + message;
+    }
+
+    void finish(Status finalStatus, String finalError) {
+        error = finalError;
+        finishedAt = Instant.now();
+        status = finalStatus;
+    }
+
+    /**
+     * Average transfer rate since the job (re)started.
+     */
+    public long getBytesPerSecond() {
+        Instant started = startedAt;
+        if (started == null) {
+            return 0;
+        }
+        Instant end = finishedAt != null ? finishedAt : Instant.now();
+        long millis = Math.max(1, end.toEpochMilli() - started.toEpochMilli());
+        return bytesTransferred.get() * 1000 / millis;
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("id", id);
+        map.put("direction", direction.name().toLowerCase());
+        map.put("localDirectory", localDirectory.toString());
+        map.put("prefix", prefix);
+        map.put("status", status.name().toLowerCase());
+        map.put("filesTotal", filesTotal.get());
+        map.put("filesTransferred", filesTransferred.get());
+        map.put("filesSkipped", filesSkipped.get());
+        map.put("filesFailed", filesFailed.get());
+        map.put("bytesTotal", bytesTotal.get());
+        map.put("bytesTransferred", bytesTransferred.get());
+        map.put("bytesPerSecond", getBytesPerSecond());
+        map.put("startedAt", startedAt != null ? startedAt.toString() : null);
+        map.put("finishedAt", finishedAt != null ? finishedAt.toString() : null);
+        map.put("error", error);
+        map.put("lastFileError", lastFileError);
+        return map;
+    }
+}
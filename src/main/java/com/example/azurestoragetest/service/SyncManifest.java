@@ -0,0 +1,72 @@
+package com.example.azurestoragetest.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Records, per blob name, the ETag and size last synced and the local file's modification time
+ * at that point. A file whose size and modification time still match, against a blob whose ETag
+ * still matches, is known to be in sync without reading either side.
+ *
+ * Kept as a properties file in the synced directory so it survives restarts.
+ */
+class SyncManifest {
+
+    static final String FILE_NAME = ".blobsync";
+
+    private final Path file;
+    private final Properties entries = new Properties();
+    private int unsaved;
+
+    private SyncManifest(Path file) {
+        this.file = file;
+    }
+
+    static SyncManifest load(Path directory) throws IOException {
+        SyncManifest manifest = new SyncManifest(directory.resolve(FILE_NAME));
+        if (Files.isRegularFile(manifest.file)) {
+            try (InputStream in = Files.newInputStream(manifest.file)) {
+                manifest.entries.load(in);
+            }
+        }
+        return manifest;
+    }
+
+    synchronized boolean matches(String blobName, String eTag, long size, long lastModifiedMillis) {
+        String entry = entries.getProperty(blobName);
+        return entry != null && entry.equals(entry(eTag, size, lastModifiedMillis));
+    }
+
+    synchronized void record(String blobName, String eTag, long size, long lastModifiedMillis) {
+        entries.setProperty(blobName, entry(eTag, size, lastModifiedMillis));
+        unsaved++;
+    }
+
+    /**
+     * Saves once enough entries have changed, so a long job does not lose all of its progress
+     * if it is interrupted.
+     */
+    synchronized void saveEvery(int changes) throws IOException {
+        if (unsaved >= changes) {
+            save();
+        }
+    }
+
+    synchronized void save() throws IOException {
+        Path temp = file.resolveSibling(FILE_NAME + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            entries.store(out, "blob sync manifest: name=etag|size|local mtime");
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        unsaved = 0;
+    }
+
+    private static String entry(String eTag, long size, long lastModifiedMillis) {
+        return eTag + "|" + size + "|" + lastModifiedMillis;
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.azurestoragetest.service;
+
+import com.azure.core.http.rest.PagedResponse;
+import com.azure.storage.blob.models.TaggedBlobItem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One page of a find-by-tags query. Pass the continuation token back to get the next page;
+ * it is null on the last page.
+ */
+public class TaggedBlobPage {
+
+    private final List<TaggedBlob> blobs;
+    private final String continuationToken;
+
+    private TaggedBlobPage(List<TaggedBlob> blobs, String continuationToken) {
+        this.blobs = blobs;
+        this.continuationToken = continuationToken;
+    }
+
+    static TaggedBlobPage of(PagedResponse<TaggedBlobItem> page) {
+        List<TaggedBlob> blobs = new ArrayList<>();
+        for (TaggedBlobItem item : page.getValue()) {
+            blobs.add(new TaggedBlob(item.getName(), item.getContainerName(),
+                    item.getTags() != null ? item.getTags() : Collections.emptyMap()));
+        }
+        String token = page.getContinuationToken();
+        return new TaggedBlobPage(blobs, token != null && !token.isEmpty() ? token : null);
+    }
+
+    static TaggedBlobPage empty() {
+        return new TaggedBlobPage(Collections.emptyList(), null);
+    }
+
+    public List<TaggedBlob> getBlobs() {
+        return blobs;
+    }
+
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public static class TaggedBlob {
+        private final String name;
+        private final String container;
+        private final Map<String, String> tags;
+
+        TaggedBlob(String name, String container, Map<String, String> tags) {
+            this.name = name;
+            this.container = container;
+            this.tags = tags;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getContainer() {
+            return container;
+        }
+
+        /**
+         * The tags that appear in the query's where clause, not necessarily all of the blob's tags.
+         */
+        public Map<String, String> getTags() {
+            return tags;
+        }
+    }
+}
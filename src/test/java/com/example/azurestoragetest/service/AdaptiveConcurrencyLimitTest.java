@@ -0,0 +1,148 @@
+package com.example.azurestoragetest.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.example.azurestoragetest.service.AdaptiveConcurrencyLimit.NO_SLOT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdaptiveConcurrencyLimitTest {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void acquireTimesOutWhenNoSlotFreesUp() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 1, 10, 5, 2.0);
+        assertNotEquals(NO_SLOT, limit.acquire(0));
+
+        long started = System.nanoTime();
+        assertEquals(NO_SLOT, limit.acquire(50));
+        assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    void acquireShedsImmediatelyWhenQueueIsFull() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 1, 10, 1, 2.0);
+        assertNotEquals(NO_SLOT, limit.acquire(0));
+        Future<Long> queued = executor.submit(() -> limit.acquire(5_000));
+        awaitQueued(limit);
+
+        long started = System.nanoTime();
+        assertEquals(NO_SLOT, limit.acquire(5_000));
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(1));
+
+        limit.release(0, false, null, 1);
+        assertNotEquals(NO_SLOT, queued.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void throttleHalvesTheLimit() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 1, 200, 5, 2.0);
+        long ticket = limit.acquire(0);
+
+        assertTrue(limit.release(ticket, true, "exists", 1));
+        assertEquals(10, limit.getLimit());
+    }
+
+    @Test
+    void concurrentThrottlesCutTheLimitOnce() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 1, 200, 5, 2.0);
+        long[] tickets = new long[8];
+        for (int i = 0; i < tickets.length; i++) {
+            tickets[i] = limit.acquire(0);
+        }
+
+        assertTrue(limit.release(tickets[0], true, "exists", 1));
+        for (int i = 1; i < tickets.length; i++) {
+            assertFalse(limit.release(tickets[i], true, "exists", 1));
+        }
+        assertEquals(10, limit.getLimit());
+
+        // Every call from before the cut has drained, so the next throttle cuts again
+        assertTrue(limit.release(limit.acquire(0), true, "exists", 1));
+        assertEquals(5, limit.getLimit());
+    }
+
+    @Test
+    void throttleFromANewCallIsIgnoredUntilOlderCallsDrain() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 1, 200, 5, 2.0);
+        long first = limit.acquire(0);
+        long older = limit.acquire(0);
+        assertTrue(limit.release(first, true, "exists", 1));
+
+        long newer = limit.acquire(0);
+        assertFalse(limit.release(newer, true, "exists", 1));
+        assertFalse(limit.release(older, false, "exists", 1));
+        assertEquals(10, limit.getLimit());
+    }
+
+    @Test
+    void limitGrowsWhenSaturated() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(4, 1, 200, 5, 2.0);
+        for (int round = 0; round < 20; round++) {
+            long[] tickets = new long[limit.getLimit()];
+            for (int i = 0; i < tickets.length; i++) {
+                tickets[i] = limit.acquire(0);
+            }
+            for (long ticket : tickets) {
+                limit.release(ticket, false, "exists", 1);
+            }
+        }
+        assertTrue(limit.getLimit() > 4);
+    }
+
+    @Test
+    void limitDoesNotGrowWhenMostlyIdle() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 1, 200, 5, 2.0);
+        for (int i = 0; i < 100; i++) {
+            limit.release(limit.acquire(0), false, "exists", 1);
+        }
+        assertEquals(20, limit.getLimit());
+    }
+
+    @Test
+    void slowCallIsJudgedAgainstItsOwnOperation() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 1, 200, 5, 2.0);
+        for (int i = 0; i < 20; i++) {
+            limit.release(limit.acquire(0), false, "exists", 20);
+            limit.release(limit.acquire(0), false, "delete", 500);
+        }
+
+        assertFalse(limit.release(limit.acquire(0), false, "delete", 600));
+        assertEquals(20, limit.getLimit());
+        assertTrue(limit.release(limit.acquire(0), false, "exists", 600));
+        assertEquals(18, limit.getLimit());
+    }
+
+    @Test
+    void sizeDependentCallsAreNotJudgedByLatency() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 1, 200, 5, 2.0);
+        for (int i = 0; i < 20; i++) {
+            limit.release(limit.acquire(0), false, null, 10);
+        }
+
+        assertFalse(limit.release(limit.acquire(0), false, null, 60_000));
+        assertEquals(20, limit.getLimit());
+    }
+
+    private static void awaitQueued(AdaptiveConcurrencyLimit limit) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (limit.getQueued() == 0) {
+            assertTrue(System.nanoTime() < deadline, "timed out waiting for queued caller");
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.example.azurestoragetest.service;
+
+import com.azure.core.http.HttpClient;
+import com.azure.core.http.HttpRequest;
+import com.azure.core.http.HttpResponse;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlobNameIndexTest {
+
+    private final FakeContainer storage = new FakeContainer();
+    private BlobNameIndex index;
+
+    @AfterEach
+    void stop() {
+        if (index != null) {
+            index.stop();
+        }
+    }
+
+    @Test
+    void flatContainerIsListedInParallelPartitions() throws Exception {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            names.add(String.format("file-%03d", i));
+        }
+        storage.names.addAll(names);
+        index = newIndex(10);
+
+        index.reconcile();
+
+        assertEquals(names, index.list(null));
+        assertTrue(storage.maxInFlight.get() > 1, "listings never overlapped");
+        assertTrue(storage.prefixes.contains("file-1"));
+    }
+
+    @Test
+    void fullListingPicksUpCharactersThePartitionsMissed() throws Exception {
+        storage.names.addAll(Arrays.asList("a", "b", "c", "\u00e9t\u00e9"));
+        index = newIndex(2);
+
+        index.reconcile();
+        assertFalse(index.exists("\u00e9t\u00e9"));
+
+        index.reconcile();
+        assertTrue(index.exists("\u00e9t\u00e9"));
+
+        // Later partitioned listings split on characters seen in the previous snapshot
+        index.reconcile();
+        assertEquals(Arrays.asList("a", "b", "c", "\u00e9t\u00e9"), index.list(null));
+    }
+
+    @Test
+    void listReturnsExactlyTheNamesUnderThePrefix() throws Exception {
+        storage.names.addAll(Arrays.asList("a", "a/b", "a\uFFFDz", "ab", "b"));
+        index = newIndex(100);
+        index.reconcile();
+        index.recordUpload("a\uFFFFy");
+
+        assertEquals(Arrays.asList("a", "a/b", "ab", "a\uFFFDz", "a\uFFFFy"), index.list("a"));
+        assertEquals(Collections.singletonList("a/b"), index.list("a/"));
+        assertEquals(Collections.singletonList("b"), index.list("b"));
+        assertEquals(Collections.emptyList(), index.list("c"));
+    }
+
+    @Test
+    void overlayIsVisibleBeforeTheNextReconcile() throws Exception {
+        storage.names.addAll(Arrays.asList("a", "b"));
+        index = newIndex(100);
+        index.reconcile();
+
+        index.recordDelete("a");
+        index.recordUpload("c");
+
+        assertFalse(index.exists("a"));
+        assertTrue(index.exists("c"));
+        assertEquals(Arrays.asList("b", "c"), index.list(null));
+    }
+
+    @Test
+    void reconcileFoldsAwayOnlyChangesMadeBeforeItStarted() throws Exception {
+        storage.names.addAll(Arrays.asList("a", "b"));
+        index = newIndex(100);
+        index.reconcile();
+
+        index.recordUpload("c");
+        storage.names.add("c");
+        storage.onList = () -> index.recordDelete("b");
+        index.reconcile();
+
+        assertEquals(1, index.pendingChanges());
+        assertFalse(index.exists("b"));
+        assertEquals(Arrays.asList("a", "c"), index.list(null));
+    }
+
+    private BlobNameIndex newIndex(int pageSize) {
+        BlobServiceClient client = new BlobServiceClientBuilder()
+                .endpoint("http://127.0.0.1:10000/devstoreaccount1")
+                .httpClient(storage)
+                .buildClient();
+        return new BlobNameIndex(client, "container", new SimpleMeterRegistry(), true, Duration.ofMinutes(1),
+                Duration.ofMinutes(5), 4, pageSize, 10);
+    }
+
+    /**
+     * Serves List Blobs for one container from an in-memory set of names, paging by offset.
+     */
+    private static final class FakeContainer implements HttpClient {
+        private final ConcurrentSkipListSet<String> names = new ConcurrentSkipListSet<>();
+        private final List<String> prefixes = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+        private volatile Runnable onList = () -> { };
+
+        @Override
+        public Mono<HttpResponse> send(HttpRequest request) {
+            return Mono.fromCallable(() -> list(request));
+        }
+
+        private HttpResponse list(HttpRequest request) throws InterruptedException, UnsupportedEncodingException {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                onList.run();
+                Map<String, String> query = query(request.getUrl().getQuery());
+                String prefix = query.getOrDefault("prefix", "");
+                prefixes.add(prefix);
+                int from = Integer.parseInt(query.getOrDefault("marker", "0"));
+                int pageSize = Integer.parseInt(query.getOrDefault("maxresults", "5000"));
+
+                List<String> matching = new ArrayList<>();
+                for (String name : names.tailSet(prefix)) {
+                    if (!name.startsWith(prefix)) {
+                        break;
+                    }
+                    matching.add(name);
+                }
+                // Long enough for the listings of sibling prefixes to overlap
+                Thread.sleep(2);
+
+                StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><EnumerationResults><Blobs>");
+                for (String name : matching.subList(Math.min(from, matching.size()), Math.min(from + pageSize, matching.size()))) {
+                    xml.append("<Blob><Name>").append(escape(name))
+                            .append("</Name><Properties><BlobType>BlockBlob</BlobType></Properties></Blob>");
+                }
+                xml.append("</Blobs>");
+                if (from + pageSize < matching.size()) {
+                    xml.append("<NextMarker>").append(from + pageSize).append("</NextMarker>");
+                }
+                xml.append("</EnumerationResults>");
+                return StubResponse.xml(request, xml.toString());
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        private static Map<String, String> query(String query) throws UnsupportedEncodingException {
+            Map<String, String> values = new HashMap<>();
+            if (query != null) {
+                for (String pair : query.split("&")) {
+                    int separator = pair.indexOf('=');
+                    if (separator > 0) {
+                        values.put(pair.substring(0, separator),
+                                URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8.name()));
+                    }
+                }
+            }
+            return values;
+        }
+
+        private static String escape(String value) {
+            return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package com.example.azurestoragetest.service;
+
+import com.azure.core.http.HttpClient;
+import com.azure.core.http.HttpHeaders;
+import com.azure.core.http.HttpRequest;
+import com.azure.core.http.HttpResponse;
+import com.azure.core.util.BinaryData;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+import reactor.core.publisher.Mono;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ContainerSyncServiceTest {
+
+    private static final String ACCOUNT_URL = "http://127.0.0.1:10000/devstoreaccount1";
+    private static final int CHUNK_SIZE = 100;
+
+    @TempDir
+    Path root;
+
+    private final FakeStorage storage = new FakeStorage();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final RequestCoalescer coalescer = new RequestCoalescer(meterRegistry, true);
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private ContainerSyncService sync;
+
+    @BeforeEach
+    void start() {
+        sync = newService(Duration.ofHours(1));
+    }
+
+    @AfterEach
+    void stop() {
+        sync.stop();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void blobNamesMapOnlyToFilesBelowTheDirectory() {
+        Path directory = root.resolve("dir");
+
+        assertEquals(directory.resolve("a/b.txt"), ContainerSyncService.localPath(directory, "a/b.txt"));
+        assertEquals(directory.resolve("b.txt"), ContainerSyncService.localPath(directory, "a/../b.txt"));
+        assertNull(ContainerSyncService.localPath(directory, "data/../../escape.txt"));
+        assertNull(ContainerSyncService.localPath(directory, "../dir2/a.txt"));
+        assertNull(ContainerSyncService.localPath(directory, "/etc/passwd"));
+        assertNull(ContainerSyncService.localPath(directory, "."));
+        assertNull(ContainerSyncService.localPath(directory, "a/"));
+        assertNull(ContainerSyncService.localPath(directory, "a\u0000b"));
+        assertNull(ContainerSyncService.localPath(directory, ".blobsync"));
+        assertNull(ContainerSyncService.localPath(directory, "a/b.txt.blobsync-part"));
+        assertNull(ContainerSyncService.localPath(directory, "a/b.txt.blobsync-state"));
+    }
+
+    @Test
+    void unmappableBlobsAreSkipped() throws Exception {
+        storage.put("data/../../escape.txt", bytes(10));
+        storage.put("data/ok.txt", bytes(10));
+
+        SyncJob job = run("download");
+
+        assertEquals(SyncJob.Status.COMPLETED, job.getStatus());
+        assertEquals(1, job.filesSkipped.get());
+        assertArrayEquals(bytes(10), Files.readAllBytes(root.resolve("dir/data/ok.txt")));
+        assertFalse(Files.exists(root.resolve("escape.txt")));
+    }
+
+    @Test
+    void blobsUpToOneChunkAreDownloadedWhole() throws Exception {
+        Path dir = Files.createDirectories(root.resolve("dir"));
+        // Left over from a time the blob was larger than a chunk
+        Files.write(dir.resolve("small.bin" + ContainerSyncService.PART_SUFFIX), bytes(250));
+        Files.write(dir.resolve("small.bin" + ContainerSyncService.STATE_SUFFIX), Collections.singletonList("x|100|250"));
+        storage.put("small.bin", bytes(CHUNK_SIZE));
+
+        SyncJob job = run("download");
+
+        assertEquals(SyncJob.Status.COMPLETED, job.getStatus());
+        assertEquals(Collections.singletonList("small.bin"), storage.downloads());
+        assertArrayEquals(bytes(CHUNK_SIZE), Files.readAllBytes(dir.resolve("small.bin")));
+        assertEquals(Collections.singleton("small.bin"), fileNames(dir));
+    }
+
+    @Test
+    void largerBlobsAreDownloadedInRanges() throws Exception {
+        storage.put("large.bin", bytes(250));
+
+        SyncJob job = run("download");
+
+        assertEquals(SyncJob.Status.COMPLETED, job.getStatus());
+        assertEquals(new HashSet<>(Arrays.asList("large.bin bytes=0-99", "large.bin bytes=100-199", "large.bin bytes=200-249")),
+                new HashSet<>(storage.downloads()));
+        assertArrayEquals(bytes(250), Files.readAllBytes(root.resolve("dir/large.bin")));
+        assertEquals(Collections.singleton("large.bin"), fileNames(root.resolve("dir")));
+    }
+
+    @Test
+    void resumedDownloadSkipsChunksListedInTheState() throws Exception {
+        storage.put("large.bin", bytes(250));
+        Path dir = Files.createDirectories(root.resolve("dir"));
+        byte[] partial = new byte[250];
+        System.arraycopy(bytes(250), 0, partial, 0, 100);
+        Files.write(dir.resolve("large.bin" + ContainerSyncService.PART_SUFFIX), partial);
+        Files.write(dir.resolve("large.bin" + ContainerSyncService.STATE_SUFFIX),
+                Arrays.asList(storage.eTag("large.bin") + "|100|250", "0", ""));
+
+        SyncJob job = run("download");
+
+        assertEquals(SyncJob.Status.COMPLETED, job.getStatus());
+        assertEquals(new HashSet<>(Arrays.asList("large.bin bytes=100-199", "large.bin bytes=200-249")),
+                new HashSet<>(storage.downloads()));
+        assertEquals(150, job.bytesTotal.get());
+        assertArrayEquals(bytes(250), Files.readAllBytes(dir.resolve("large.bin")));
+    }
+
+    @Test
+    void stateOfAnotherBlobVersionOrChunkSizeIsIgnored() throws Exception {
+        storage.put("large.bin", bytes(250));
+        Path dir = Files.createDirectories(root.resolve("dir"));
+        Files.write(dir.resolve("large.bin" + ContainerSyncService.PART_SUFFIX), new byte[250]);
+        Files.write(dir.resolve("large.bin" + ContainerSyncService.STATE_SUFFIX),
+                Arrays.asList(storage.eTag("large.bin") + "|50|250", "0", "1"));
+
+        SyncJob job = run("download");
+
+        assertEquals(SyncJob.Status.COMPLETED, job.getStatus());
+        assertEquals(3, storage.downloads().size());
+        assertArrayEquals(bytes(250), Files.readAllBytes(dir.resolve("large.bin")));
+    }
+
+    @Test
+    void blockIdsAreFixedByIndexSizeAndModificationTime() {
+        String id = ContainerSyncService.blockId(1, 250, 1_700_000_000_000L);
+
+        assertEquals("000001-00000000000000fa-0000018bcfe56800",
+                new String(Base64.getDecoder().decode(id), StandardCharsets.UTF_8));
+        assertEquals(id, ContainerSyncService.blockId(1, 250, 1_700_000_000_000L));
+        assertNotEquals(id, ContainerSyncService.blockId(1, 251, 1_700_000_000_000L));
+        assertNotEquals(id, ContainerSyncService.blockId(1, 250, 1_700_000_000_001L));
+        assertEquals(id.length(), ContainerSyncService.blockId(49_999, Long.MAX_VALUE, Long.MAX_VALUE).length());
+    }
+
+    @Test
+    void uploadReusesBlocksStagedByAnEarlierRun() throws Exception {
+        Path file = Files.createDirectories(root.resolve("dir")).resolve("large.bin");
+        Files.write(file, bytes(250));
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        String[] ids = new String[3];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = ContainerSyncService.blockId(i, 250, lastModified);
+        }
+        storage.stage("large.bin", ids[0], Arrays.copyOfRange(bytes(250), 0, 100));
+        // Same ID but not the size this run would stage, so it is staged again
+        storage.stage("large.bin", ids[1], bytes(7));
+
+        SyncJob job = run("upload");
+
+        assertEquals(SyncJob.Status.COMPLETED, job.getStatus());
+        assertEquals(new HashSet<>(Arrays.asList(ids[1], ids[2])), new HashSet<>(storage.stagedBlocks));
+        assertEquals(Arrays.asList(ids), storage.committedBlocks);
+        assertArrayEquals(bytes(250), storage.blobs.get("large.bin"));
+        assertEquals(150, job.bytesTotal.get());
+    }
+
+    @Test
+    void uploadsDetachInFlightReadsOfTheBlob() throws Exception {
+        Files.write(Files.createDirectories(root.resolve("dir")).resolve("a.txt"), bytes(10));
+        String key = ACCOUNT_URL + "/container/a.txt";
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Boolean> before = executor.submit(() -> coalescer.execute("exists", key, () -> {
+            started.countDown();
+            await(release);
+            return false;
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        SyncJob job = run("upload");
+
+        assertEquals(SyncJob.Status.COMPLETED, job.getStatus());
+        Future<Boolean> after = executor.submit(() -> coalescer.execute("exists", key, () -> true));
+        assertTrue(after.get(5, TimeUnit.SECONDS));
+        release.countDown();
+        assertFalse(before.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void finishedJobsAreForgottenAfterTheRetention() throws Exception {
+        sync.stop();
+        sync = newService(Duration.ZERO);
+        storage.put("a.txt", bytes(10));
+        CountDownLatch release = new CountDownLatch(1);
+        storage.beforeList = () -> await(release);
+
+        SyncJob job = sync.submit("download", "dir", null);
+        TimeUnit.MILLISECONDS.sleep(20);
+        assertNotNull(sync.getJob(job.getId()), "running job was evicted");
+
+        release.countDown();
+        awaitFinished(job);
+        TimeUnit.MILLISECONDS.sleep(5);
+        assertNull(sync.getJob(job.getId()));
+        assertTrue(sync.getJobs().isEmpty());
+    }
+
+    private ContainerSyncService newService(Duration retention) {
+        BlobServiceClient client = new BlobServiceClientBuilder()
+                .endpoint(ACCOUNT_URL)
+                .httpClient(storage)
+                .buildClient();
+        BlobNameIndex index = new BlobNameIndex(client, "container", meterRegistry, false, Duration.ofMinutes(1),
+                Duration.ofMinutes(5), 1, 5000, 10);
+        StorageConcurrencyLimiter limiter = new StorageConcurrencyLimiter(meterRegistry, true, 20, 1, 200, 50,
+                Duration.ofMillis(100), 2.0, Duration.ofSeconds(1), 1000, Duration.ofMinutes(10));
+        HedgedReadExecutor hedger = new HedgedReadExecutor(meterRegistry, false, 95, Duration.ofMillis(20),
+                Duration.ofSeconds(2), 4, 1000, Duration.ofMinutes(10));
+        BlobStorageService blobStorageService = new BlobStorageService(client, null, "container", coalescer, index,
+                limiter, hedger);
+        ContainerSyncService service = new ContainerSyncService(client, "container", index, blobStorageService, limiter,
+                meterRegistry, root.toString(), 4, DataSize.ofBytes(CHUNK_SIZE), 2, retention);
+        service.start();
+        return service;
+    }
+
+    private SyncJob run(String direction) throws InterruptedException {
+        SyncJob job = sync.submit(direction, "dir", null);
+        awaitFinished(job);
+        return job;
+    }
+
+    private static void awaitFinished(SyncJob job) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (job.isActive()) {
+            assertTrue(System.nanoTime() < deadline, "sync job did not finish");
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+    }
+
+    private static Set<String> fileNames(Path directory) throws Exception {
+        Set<String> names = new HashSet<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> !name.startsWith(SyncManifest.FILE_NAME))
+                    .forEach(names::add);
+        }
+        return names;
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i % 251);
+        }
+        return bytes;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Serves one container's List Blobs, Get Blob, Put Blob, Put Block, Get Block List and Put
+     * Block List from memory.
+     */
+    private static final class FakeStorage implements HttpClient {
+        private static final String LAST_MODIFIED = "Mon, 19 Oct 2026 00:00:00 GMT";
+        private static final Pattern LATEST = Pattern.compile("<Latest>([^<]*)</Latest>");
+
+        private final Map<String, byte[]> blobs = new ConcurrentSkipListMap<>();
+        private final Map<String, String> eTags = new ConcurrentHashMap<>();
+        private final Map<String, Map<String, byte[]>> uncommitted = new ConcurrentHashMap<>();
+        private final List<String> downloads = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> stagedBlocks = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger versions = new AtomicInteger();
+        private volatile List<String> committedBlocks;
+        private volatile Runnable beforeList = () -> { };
+
+        void put(String name, byte[] content) {
+            blobs.put(name, content);
+            eTags.put(name, "0x" + versions.incrementAndGet());
+        }
+
+        void stage(String name, String blockId, byte[] data) {
+            synchronized (uncommitted) {
+                uncommitted.computeIfAbsent(name, n -> new LinkedHashMap<>()).put(blockId, data);
+            }
+        }
+
+        String eTag(String name) {
+            return eTags.get(name);
+        }
+
+        List<String> downloads() {
+            synchronized (downloads) {
+                return new ArrayList<>(downloads);
+            }
+        }
+
+        @Override
+        public Mono<HttpResponse> send(HttpRequest request) {
+            return Mono.fromCallable(() -> handle(request));
+        }
+
+        private HttpResponse handle(HttpRequest request) throws UnsupportedEncodingException {
+            String path = request.getUrl().getPath();
+            String containerPath = "/devstoreaccount1/container";
+            String name = path.length() > containerPath.length()
+                    ? URLDecoder.decode(path.substring(containerPath.length() + 1), StandardCharsets.UTF_8.name())
+                    : null;
+            Map<String, String> query = query(request.getUrl().getQuery());
+            String comp = query.get("comp");
+            switch (request.getHttpMethod()) {
+                case GET:
+                case HEAD:
+                    if (name == null) {
+                        return "list".equals(comp) ? list(request) : created(request, 200, "\"0x0\"");
+                    }
+                    return "blocklist".equals(comp) ? blockList(request, name) : download(request, name);
+                case PUT:
+                    byte[] body = body(request);
+                    if ("block".equals(comp)) {
+                        stagedBlocks.add(query.get("blockid"));
+                        stage(name, query.get("blockid"), body);
+                    } else if ("blocklist".equals(comp)) {
+                        commit(name, new String(body, StandardCharsets.UTF_8));
+                    } else {
+                        put(name, body);
+                    }
+                    return created(request, 201, eTags.get(name));
+                default:
+                    throw new IllegalArgumentException("Unexpected request " + request.getHttpMethod() + " " + path);
+            }
+        }
+
+        private HttpResponse list(HttpRequest request) {
+            beforeList.run();
+            StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><EnumerationResults><Blobs>");
+            for (Map.Entry<String, byte[]> blob : blobs.entrySet()) {
+                xml.append("<Blob><Name>").append(escape(blob.getKey())).append("</Name><Properties>")
+                        .append("<Last-Modified>").append(LAST_MODIFIED).append("</Last-Modified>")
+                        .append("<Etag>").append(eTags.get(blob.getKey())).append("</Etag>")
+                        .append("<Content-Length>").append(blob.getValue().length).append("</Content-Length>")
+                        .append("<BlobType>BlockBlob</BlobType></Properties></Blob>");
+            }
+            xml.append("</Blobs></EnumerationResults>");
+            return StubResponse.xml(request, xml.toString());
+        }
+
+        private HttpResponse download(HttpRequest request, String name) {
+            byte[] content = blobs.get(name);
+            String range = request.getHeaders().getValue("x-ms-range");
+            downloads.add(range != null ? name + " " + range : name);
+            HttpHeaders headers = new HttpHeaders()
+                    .set("Content-Type", "application/octet-stream")
+                    .set("ETag", eTags.get(name))
+                    .set("Last-Modified", LAST_MODIFIED)
+                    .set("x-ms-blob-type", "BlockBlob");
+            if (range == null) {
+                headers.set("Content-Length", Integer.toString(content.length));
+                return new StubResponse(request, 200, headers, content);
+            }
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            int from = Integer.parseInt(bounds[0]);
+            int to = Math.min(Integer.parseInt(bounds[1]), content.length - 1);
+            headers.set("Content-Length", Integer.toString(to - from + 1))
+                    .set("Content-Range", "bytes " + from + "-" + to + "/" + content.length);
+            return new StubResponse(request, 206, headers, Arrays.copyOfRange(content, from, to + 1));
+        }
+
+        private HttpResponse blockList(HttpRequest request, String name) {
+            StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><BlockList><CommittedBlocks />"
+                    + "<UncommittedBlocks>");
+            synchronized (uncommitted) {
+                for (Map.Entry<String, byte[]> block : uncommitted.getOrDefault(name, Collections.emptyMap()).entrySet()) {
+                    xml.append("<Block><Name>").append(block.getKey()).append("</Name><Size>")
+                            .append(block.getValue().length).append("</Size></Block>");
+                }
+            }
+            xml.append("</UncommittedBlocks></BlockList>");
+            return StubResponse.xml(request, xml.toString());
+        }
+
+        private void commit(String name, String body) {
+            List<String> ids = new ArrayList<>();
+            Matcher matcher = LATEST.matcher(body);
+            while (matcher.find()) {
+                ids.add(matcher.group(1));
+            }
+            byte[] content;
+            synchronized (uncommitted) {
+                Map<String, byte[]> staged = uncommitted.remove(name);
+                int length = ids.stream().mapToInt(id -> staged.get(id).length).sum();
+                content = new byte[length];
+                int offset = 0;
+                for (String id : ids) {
+                    byte[] data = staged.get(id);
+                    System.arraycopy(data, 0, content, offset, data.length);
+                    offset += data.length;
+                }
+            }
+            committedBlocks = ids;
+            put(name, content);
+        }
+
+        private static HttpResponse created(HttpRequest request, int status, String eTag) {
+            HttpHeaders headers = new HttpHeaders()
+                    .set("ETag", eTag)
+                    .set("Last-Modified", LAST_MODIFIED)
+                    .set("Content-Length", "0");
+            return new StubResponse(request, status, headers, new byte[0]);
+        }
+
+        private static byte[] body(HttpRequest request) {
+            BinaryData body = request.getBodyAsBinaryData();
+            return body != null ? body.toBytes() : new byte[0];
+        }
+
+        private static Map<String, String> query(String query) throws UnsupportedEncodingException {
+            Map<String, String> values = new HashMap<>();
+            if (query != null) {
+                for (String pair : query.split("&")) {
+                    int separator = pair.indexOf('=');
+                    if (separator > 0) {
+                        values.put(pair.substring(0, separator),
+                                URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8.name()));
+                    } else {
+                        values.put(pair, "");
+                    }
+                }
+            }
+            return values;
+        }
+
+        private static String escape(String value) {
+            return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.azurestoragetest.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HedgedReadExecutorTest {
+
+    private static final String ACCOUNT = "https://account.blob.core.windows.net";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final HedgedReadExecutor hedger = new HedgedReadExecutor(meterRegistry, true, 95,
+            Duration.ofMillis(10), Duration.ofMillis(10), 4, 1000, Duration.ofMinutes(10));
+    private final HedgedReadExecutor adaptiveHedger = new HedgedReadExecutor(meterRegistry, true, 95,
+            Duration.ofMillis(1), Duration.ofMillis(200), 16, 1000, Duration.ofMinutes(10));
+
+    @AfterEach
+    void stop() {
+        hedger.stop();
+        adaptiveHedger.stop();
+    }
+
+    @Test
+    void fastPrimaryIsNotHedged() {
+        AtomicBoolean secondaryCalled = new AtomicBoolean();
+
+        assertEquals("primary", hedger.execute(ACCOUNT, "download", () -> "primary", () -> {
+            secondaryCalled.set(true);
+            return "secondary";
+        }));
+        assertFalse(secondaryCalled.get());
+        assertEquals(0, count("blob.hedge.issued", "download"));
+    }
+
+    @Test
+    void secondaryWinsWhenPrimaryIsSlow() {
+        CountDownLatch release = new CountDownLatch(1);
+
+        assertEquals("secondary", hedger.execute(ACCOUNT, "download", blockUntil(release, "primary"), () -> "secondary"));
+        release.countDown();
+        assertEquals(1, count("blob.hedge.issued", "download"));
+        assertEquals(1, count("blob.hedge.wins", "download"));
+    }
+
+    @Test
+    void untrustedSecondaryAnswerWaitsForPrimary() {
+        CountDownLatch release = new CountDownLatch(1);
+
+        boolean exists = hedger.execute(ACCOUNT, "exists", blockUntilThenLag(release, true), () -> {
+            release.countDown();
+            return false;
+        }, Boolean::booleanValue);
+
+        assertTrue(exists);
+        assertEquals(0, count("blob.hedge.wins", "exists"));
+        assertEquals(1, count("blob.hedge.untrusted", "exists"));
+    }
+
+    @Test
+    void failedSecondaryWaitsForPrimary() {
+        CountDownLatch release = new CountDownLatch(1);
+
+        assertEquals("primary", hedger.execute(ACCOUNT, "download", blockUntilThenLag(release, "primary"), () -> {
+            release.countDown();
+            throw new RuntimeException("Blob does not exist on the secondary yet");
+        }));
+        assertEquals(0, count("blob.hedge.wins", "download"));
+    }
+
+    @Test
+    void trustedSecondaryAnswerCoversPrimaryFailure() {
+        CountDownLatch secondaryStarted = new CountDownLatch(1);
+        Supplier<Boolean> primary = () -> {
+            await(secondaryStarted);
+            throw new IllegalStateException("throttled");
+        };
+
+        assertTrue(hedger.execute(ACCOUNT, "exists", primary, () -> {
+            secondaryStarted.countDown();
+            sleep(50);
+            return true;
+        }, Boolean::booleanValue));
+        assertEquals(1, count("blob.hedge.wins", "exists"));
+    }
+
+    @Test
+    void primaryFailureIsThrownWhenSecondaryAnswerIsUntrusted() {
+        CountDownLatch secondaryStarted = new CountDownLatch(1);
+        IllegalStateException failure = new IllegalStateException("throttled");
+        Supplier<Boolean> primary = () -> {
+            await(secondaryStarted);
+            throw failure;
+        };
+
+        IllegalStateException thrown = assertThrows(IllegalStateException.class,
+                () -> hedger.execute(ACCOUNT, "exists", primary, () -> {
+                    secondaryStarted.countDown();
+                    sleep(50);
+                    return false;
+                }, Boolean::booleanValue));
+        assertSame(failure, thrown);
+    }
+
+    @Test
+    void cancelledPrimariesStillCountTowardsTheDelay() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            adaptiveHedger.execute(ACCOUNT, "download", () -> "primary", () -> "secondary");
+        }
+        assertEquals(1, adaptiveHedger.delayMillis(ACCOUNT, "download"));
+
+        // The secondary keeps winning, so every primary is cancelled mid-call
+        for (int i = 0; i < 50; i++) {
+            assertEquals("secondary", adaptiveHedger.execute(ACCOUNT, "download", HedgedReadExecutorTest::failWhenInterrupted, () -> {
+                sleep(20);
+                return "secondary";
+            }));
+        }
+        awaitDelayAtLeast(ACCOUNT, "download", 20);
+    }
+
+    @Test
+    void delayIsTrackedPerAccount() throws Exception {
+        String slowAccount = "https://slow.blob.core.windows.net";
+        for (int i = 0; i < 50; i++) {
+            adaptiveHedger.execute(ACCOUNT, "download", () -> "primary", () -> "secondary");
+            adaptiveHedger.execute(slowAccount, "download", () -> {
+                sleep(30);
+                return "primary";
+            }, () -> "secondary");
+        }
+
+        awaitDelayAtLeast(slowAccount, "download", 30);
+        assertEquals(1, adaptiveHedger.delayMillis(ACCOUNT, "download"));
+    }
+
+    private void awaitDelayAtLeast(String account, String operation, long millis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (adaptiveHedger.delayMillis(account, operation) < millis) {
+            assertTrue(System.nanoTime() < deadline,
+                    "hedge delay stuck at " + adaptiveHedger.delayMillis(account, operation) + "ms");
+            Thread.sleep(5);
+        }
+    }
+
+    private double count(String counter, String operation) {
+        return meterRegistry.counter(counter, "operation", operation).count();
+    }
+
+    private static <T> Supplier<T> blockUntil(CountDownLatch latch, T value) {
+        return () -> {
+            await(latch);
+            return value;
+        };
+    }
+
+    /**
+     * Lets the secondary's answer complete before the primary's, whatever the thread scheduling.
+     */
+    private static <T> Supplier<T> blockUntilThenLag(CountDownLatch latch, T value) {
+        return () -> {
+            await(latch);
+            sleep(50);
+            return value;
+        };
+    }
+
+    /**
+     * Blocks like an SDK call and, like one, fails when its thread is interrupted by a cancel.
+     */
+    private static String failWhenInterrupted() {
+        try {
+            Thread.sleep(5_000);
+            return "primary";
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Interrupted", e);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.example.azurestoragetest.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RequestCoalescerTest {
+
+    private static final int JOINERS = 4;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final RequestCoalescer coalescer = new RequestCoalescer(meterRegistry, true);
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void joinersShareTheLeadersResult() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+
+        Future<String> leader = submit("download", "blob", () -> {
+            calls.incrementAndGet();
+            await(release);
+            return "content";
+        });
+        awaitInFlight("download");
+        List<Future<String>> joiners = submitJoiners("download", "blob");
+        awaitCoalesced("download", JOINERS);
+        release.countDown();
+
+        assertEquals("content", leader.get(5, TimeUnit.SECONDS));
+        for (Future<String> joiner : joiners) {
+            assertEquals("content", joiner.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void joinersShareTheLeadersException() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        IllegalStateException failure = new IllegalStateException("boom");
+
+        Future<String> leader = submit("download", "blob", () -> {
+            await(release);
+            throw failure;
+        });
+        awaitInFlight("download");
+        List<Future<String>> joiners = submitJoiners("download", "blob");
+        awaitCoalesced("download", JOINERS);
+        release.countDown();
+
+        assertSame(failure, causeOf(leader));
+        for (Future<String> joiner : joiners) {
+            assertSame(failure, causeOf(joiner));
+        }
+    }
+
+    @Test
+    void keyIsReleasedAfterCompletion() {
+        AtomicInteger calls = new AtomicInteger();
+
+        assertEquals(1, (int) coalescer.execute("exists", "blob", calls::incrementAndGet));
+        assertEquals(2, (int) coalescer.execute("exists", "blob", calls::incrementAndGet));
+        assertThrows(IllegalStateException.class, () -> coalescer.execute("exists", "blob", () -> {
+            throw new IllegalStateException("boom");
+        }));
+        assertEquals(3, (int) coalescer.execute("exists", "blob", calls::incrementAndGet));
+    }
+
+    @Test
+    void forgetStartsAFreshCallForLaterCallers() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<String> stale = submit("download", "blob", () -> {
+            await(release);
+            return "before write";
+        });
+        awaitInFlight("download");
+        coalescer.forget("download", "blob");
+
+        assertEquals("after write", coalescer.execute("download", "blob", () -> "after write"));
+        release.countDown();
+        assertEquals("before write", stale.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void forgetAllMatchesByPrefix() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<String> listing = submit("list", "container/?prefix=a", () -> {
+            await(release);
+            return "stale";
+        });
+        awaitInFlight("list");
+        coalescer.forgetAll("list", "container/");
+
+        assertEquals("fresh", coalescer.execute("list", "container/?prefix=a", () -> "fresh"));
+        release.countDown();
+        assertEquals("stale", listing.get(5, TimeUnit.SECONDS));
+    }
+
+    private Future<String> submit(String operation, String key, Supplier<String> call) {
+        return executor.submit(() -> coalescer.execute(operation, key, call));
+    }
+
+    private List<Future<String>> submitJoiners(String operation, String key) {
+        List<Future<String>> joiners = new ArrayList<>();
+        for (int i = 0; i < JOINERS; i++) {
+            joiners.add(submit(operation, key, () -> {
+                throw new AssertionError("joiner must not start its own call");
+            }));
+        }
+        return joiners;
+    }
+
+    private void awaitInFlight(String operation) throws InterruptedException {
+        awaitCount("blob.requests.executed", operation, 1);
+    }
+
+    private void awaitCoalesced(String operation, int count) throws InterruptedException {
+        awaitCount("blob.requests.coalesced", operation, count);
+    }
+
+    private void awaitCount(String counter, String operation, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (meterRegistry.counter(counter, "operation", operation).count() < count) {
+            assertTrue(System.nanoTime() < deadline, "timed out waiting for " + counter);
+            Thread.sleep(5);
+        }
+    }
+
+    private static Throwable causeOf(Future<?> future) {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        return e.getCause();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.azurestoragetest.service;
+
+import com.azure.core.http.HttpHeaders;
+import com.azure.core.http.HttpRequest;
+import com.azure.core.http.HttpResponse;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A canned response for the in-process {@link com.azure.core.http.HttpClient} fakes the storage
+ * tests build real SDK clients on.
+ */
+final class StubResponse extends HttpResponse {
+    private final int statusCode;
+    private final HttpHeaders headers;
+    private final byte[] body;
+
+    StubResponse(HttpRequest request, int statusCode, HttpHeaders headers, byte[] body) {
+        super(request);
+        this.statusCode = statusCode;
+        this.headers = headers.set("x-ms-request-id", "test");
+        this.body = body;
+    }
+
+    static StubResponse xml(HttpRequest request, String xml) {
+        return new StubResponse(request, 200, new HttpHeaders().set("Content-Type", "application/xml"),
+                xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    @Override
+    public String getHeaderValue(String name) {
+        return headers.getValue(name);
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public Flux<ByteBuffer> getBody() {
+        return Flux.just(ByteBuffer.wrap(body));
+    }
+
+    @Override
+    public Mono<byte[]> getBodyAsByteArray() {
+        return Mono.just(body);
+    }
+
+    @Override
+    public Mono<String> getBodyAsString() {
+        return Mono.just(new String(body, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Mono<String> getBodyAsString(Charset charset) {
+        return Mono.just(new String(body, charset));
+    }
+}